@@ -1,8 +1,9 @@
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * This code defines four interfaces: Buy, Build, Consume, and Sell, that can be
@@ -23,35 +24,63 @@ interface Buy {
      * @param player   the player who is placing the buy order
      * @param product  the product being bought
      * @param quantity the quantity of the product being bought
-     * @return the new buy order
+     * @return the new buy order, which the player releases once it no longer uses it
      */
     default Order buy(Player player, CatalogProduct product, int quantity) {
         return Order.newBuyOrder(player, product, quantity, calculateMaxPricePerUnit(player, product));
 
     }
 
-    default Order buy(Player player, CatalogProduct product, int quantity, double maxPrice) {
+    default Order buy(Player player, CatalogProduct product, int quantity, long maxPrice) {
         return Order.newBuyOrder(player, product, quantity, maxPrice);
     }
 
-    default double calculateMaxPricePerUnit(Player player, CatalogProduct product) {
-        return product.getRecommendedPrice() * (1 + player.getPriceTolerance());
+    default long calculateMaxPricePerUnit(Player player, CatalogProduct product) {
+        return Money.scale(product.getRecommendedPrice(), 1 + player.getPriceTolerance());
     }
 
     /**
      * Waits for the specified buy order to complete.
      *
-     * @param order the buy order to wait for
+     * @param order            the buy order to wait for
+     * @param timeMilliseconds the maximum time to wait
      * @throws InterruptedException if the thread is interrupted while waiting
      */
     default void waitForBuyOrder(Order order, int timeMilliseconds) throws InterruptedException {
-        order.waitUntilCompleted(timeMilliseconds, TimeUnit.MILLISECONDS);
+        waitForBuyOrders(List.of(order), timeMilliseconds);
+    }
+
+    /**
+     * Waits for all the specified buy orders to complete, with one deadline for all
+     * of them. Returns as soon as the last order is completed or the deadline has
+     * passed. On a ForkJoinPool worker the wait is a managed block, so the pool
+     * runs other turns on a compensating worker meanwhile.
+     *
+     * @param orders           the buy orders to wait for
+     * @param timeMilliseconds the maximum time to wait
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    default void waitForBuyOrders(List<Order> orders, int timeMilliseconds) throws InterruptedException {
+        CompletableFuture<?>[] completions = new CompletableFuture<?>[orders.size()];
+        for (int i = 0; i < completions.length; i++) {
+            completions[i] = orders.get(i).getCompletion();
+        }
+        try {
+            CompletableFuture.allOf(completions).get(timeMilliseconds, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            /**Not all orders were completed in time, continue with what was filled*/
+        }
     }
 }
 
 interface Build extends Buy {
     /**
-     * Builds a product using the player's stock of materials.
+     * Builds a product using the player's stock of materials. The build plan of
+     * the product is walked once from the product towards the raw materials: every
+     * component is taken from the stock first, and the missing quantity is either
+     * built from its own materials or bought, whichever the plan found cheaper.
+     * All purchases are placed together and waited for with a single deadline,
+     * then the sub-assemblies are built from the deepest up to the product.
      *
      * @param player   the player who is building the product
      * @param product  the product being built
@@ -64,61 +93,80 @@ interface Build extends Buy {
             player.getStock().addProducts(product, quantity);
             return;
         }
-        List<CatalogProduct.Component> components = product.getComponents();
-        Map<CatalogProduct, Integer> requiredMaterials = new HashMap<>();
-
-        /**Count the required quantity of each component*/
-        for (CatalogProduct.Component component : components) {
-            CatalogProduct material = component.getProduct();
-            int requiredQuantity = component.getQuantity() * quantity;
-            requiredMaterials.merge(material, requiredQuantity, Integer::sum);
+        CatalogProduct.BuildPlan plan = product.getBuildPlan();
+        Stock stock = player.getStock();
+        int[] required = new int[plan.size()];
+        int[] toBuild = new int[plan.size()];
+        required[0] = quantity;
+
+        /**Plan in topological order, so the full need of a node is known before it is split*/
+        ArrayList<Order> buyOrders = null;
+        for (int node = 0; node < plan.size(); node++) {
+            int missing = required[node];
+            if (node > 0) {
+                missing -= Math.min(missing, stock.getQuantity(plan.getProduct(node)));
+            }
+            if (missing == 0) {
+                continue;
+            }
+            if (plan.isAssembled(node)) {
+                toBuild[node] = missing;
+                for (int edge = plan.getEdgeStart(node); edge < plan.getEdgeEnd(node); edge++) {
+                    required[plan.getEdgeNode(edge)] += plan.getEdgeQuantity(edge) * missing;
+                }
+            } else {
+                if (buyOrders == null) {
+                    buyOrders = new ArrayList<>(plan.size());
+                }
+                /**Not enough materials, buy more for at most the share of the product price that falls on the material*/
+                buyOrders.add(buy(player, plan.getProduct(node), missing, plan.getBudget(node)));
+            }
         }
 
-        /**Check if the player has enough materials to build the product*/
-        Map<CatalogProduct, Integer> availableMaterials = player.getStock().getProductQuantities();
-        boolean hasEnoughMaterials = true;
-        ArrayList<Order> buyOrders = new ArrayList<>();
-        for (Map.Entry<CatalogProduct, Integer> entry : requiredMaterials.entrySet()) {
-            CatalogProduct material = entry.getKey();
-            int requiredQuantity = entry.getValue();
-            int availableQuantity = availableMaterials.getOrDefault(material, 0);
-            if (availableQuantity < requiredQuantity) {
-                /**calculate the maximum price to pay for the material*/
-                double maxBuyPrice = product.getComponentsPrice(material) / product.getComponentsPrice() * product.getRecommendedPrice();
-                //System.out.println("maxBuyPrice: " + maxBuyPrice + " for " + material.getName() + " for " + product.getName() + " with components price: " + product.getComponentsPrice(material) + " and recommended price: " + product.getRecommendedPrice());
-                /**Not enough materials, buy more and then build*/
-                buyOrders.add(buy(player, material, requiredQuantity - availableQuantity, maxBuyPrice));
-                hasEnoughMaterials = false;
+        if (buyOrders != null) {
+            /** Wait for all buy orders to complete with a single deadline*/
+            waitForBuyOrders(buyOrders, 20);
+            for (Order order : buyOrders) {
+                order.release();
             }
         }
 
-        if (!hasEnoughMaterials) {
-            /** Wait for the buy orders to complete*/
-            while (buyOrders.size() > 0) {
-                waitForBuyOrder(buyOrders.get(0), 20);
-                buyOrders.remove(0);
+        /**Build the sub-assemblies first, so the products made of them find them in stock*/
+        for (int node = plan.size() - 1; node > 0; node--) {
+            if (toBuild[node] > 0) {
+                assemble(player, plan.getProduct(node), toBuild[node]);
             }
         }
+        assemble(player, product, quantity);
+    }
 
-        /**Calculate how many products can be built*/
-        int maxCanBuildQuantity = Integer.MAX_VALUE;
-        for (Map.Entry<CatalogProduct, Integer> entry : requiredMaterials.entrySet()) {
-            CatalogProduct material = entry.getKey();
-            int requiredQuantity = entry.getValue();
-            int availableQuantity = player.getStock().getProductQuantities().getOrDefault(material, 0);
-            maxCanBuildQuantity = Math.min(maxCanBuildQuantity, availableQuantity / requiredQuantity);
-        }
-        if (maxCanBuildQuantity == Integer.MAX_VALUE) {
+    /**
+     * Builds up to the given quantity of a product from the materials in the
+     * player's stock, without buying anything.
+     *
+     * @param player   the player who is building the product
+     * @param product  the product being built
+     * @param quantity the quantity of the product to build at most
+     */
+    private void assemble(Player player, CatalogProduct product, int quantity) {
+        CatalogProduct.BillOfMaterials materials = product.getBillOfMaterials();
+        Stock stock = player.getStock();
+
+        if (materials.size() == 0) {
             return;
         }
+        /**Calculate how many products can be built, at most the requested quantity*/
+        int maxCanBuildQuantity = quantity;
+        for (int i = 0; i < materials.size(); i++) {
+            int availableQuantity = stock.getQuantity(materials.getMaterial(i));
+            maxCanBuildQuantity = Math.min(maxCanBuildQuantity, availableQuantity / materials.getQuantity(i));
+        }
         /** Remove the required materials from the player's stock and add the built product */
-        for (Map.Entry<CatalogProduct, Integer> entry : requiredMaterials.entrySet()) {
-            CatalogProduct material = entry.getKey();
-            int requiredQuantity = entry.getValue();
-            player.getStock().removeProducts(material, requiredQuantity * maxCanBuildQuantity);
+        for (int i = 0; i < materials.size(); i++) {
+            stock.removeProducts(materials.getMaterial(i), materials.getQuantity(i) * maxCanBuildQuantity);
         }
-        player.getStock().addProducts(product, maxCanBuildQuantity);
-        if (maxCanBuildQuantity > 0) {
+        stock.addProducts(product, maxCanBuildQuantity);
+        if (maxCanBuildQuantity > 0 && Log.getInstance().isEnabled(Log.Level.INFO)) {
             Log.getInstance().addMessage(player.getName() + " built " + maxCanBuildQuantity + " " + product.getName() + "s", Log.Level.INFO);
         }
     }
@@ -143,16 +191,19 @@ interface Consume extends Buy {
      *                              buy order to complete
      */
     default void consume(Player player, CatalogProduct product, int quantity) throws InterruptedException {
-        List<CatalogProduct.Product> products = player.getStock().getProducts(product);
-        int availableQuantity = products.size();
+        int availableQuantity = player.getStock().getQuantity(product);
 
         if (!(availableQuantity >= quantity)) {
             /** Not enough stock, buy more and then consume*/
-            waitForBuyOrder(buy(player, product, quantity - availableQuantity, calculateMaxPricePerUnit(player, product)), 20);
+            Order order = buy(player, product, quantity - availableQuantity, calculateMaxPricePerUnit(player, product));
+            waitForBuyOrder(order, 20);
+            order.release();
         }
 
         int consumed = player.getStock().removeProducts(product, quantity);
-        if (consumed > 0)
+        player.getHistory().addConsumedRecord(Main.getRound(), product, consumed);
+        Market.getInstance().getHistory().addConsumedRecord(Main.getRound(), product, consumed);
+        if (consumed > 0 && Log.getInstance().isEnabled(Log.Level.INFO))
             Log.getInstance().addMessage(player.getName() + " consumed " + consumed + " " + product.getName() + "s", Log.Level.INFO);
     }
 }
@@ -177,8 +228,7 @@ interface Sell extends Build {
      *                              build order to complete
      */
     default void sell(Player player, CatalogProduct product, int quantity) throws InterruptedException {
-        List<CatalogProduct.Product> products = player.getStock().getProducts(product);
-        int availableQuantity = products.size();
+        int availableQuantity = player.getStock().getQuantity(product);
 
         if (!(availableQuantity >= quantity)) {
             /** Not enough products in stock, try to build*/
@@ -186,17 +236,16 @@ interface Sell extends Build {
             build(player, product, quantityToBuild);
 
             /** Get the updated quantity of available products*/
-            products = player.getStock().getProducts(product);
-            availableQuantity = products.size();
+            availableQuantity = player.getStock().getQuantity(product);
 
         }
         /**Actions.Sell the requested quantity of products or all the available. Products, whichever is smaller*/
         int quantityToSell = Math.min(quantity, availableQuantity);
         if (quantityToSell > 0)
-            Order.newSellOrder(player, product, quantityToSell, calculateMinPricePerUnit(player, product));
+            Order.newSellOrder(player, product, quantityToSell, calculateMinPricePerUnit(player, product)).release();
     }
 
-    default double calculateMinPricePerUnit(Player player, CatalogProduct product) {
-        return product.getRecommendedPrice() * (1 - player.getPriceTolerance());
+    default long calculateMinPricePerUnit(Player player, CatalogProduct product) {
+        return Money.scale(product.getRecommendedPrice(), 1 - player.getPriceTolerance());
     }
 }
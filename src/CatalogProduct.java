@@ -6,13 +6,22 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
  * The CatalogProduct class represents a product in a catalog. It contains
  * information about the product's name, recommended price, and components that
  * make up the product. It also provides static methods to retrieve products by
- * name or ID.
+ * name or ID. Once the catalog is loaded, an immutable index answers these
+ * lookups in constant time.
  */
 public class CatalogProduct {
     /**
@@ -21,6 +30,20 @@ public class CatalogProduct {
     public static ArrayList<CatalogProduct> catalog = new ArrayList<>();
 
     private static int nextId = 0;
+    /**
+     * The products by name, filled while the catalog is loading so components can
+     * refer to products defined before them. Every product is found by its name in
+     * lower case and as it was written in the catalog.
+     */
+    private static final Map<String, CatalogProduct> productsByName = new HashMap<>();
+    /**
+     * The products by name ignoring case, for names written in any other case.
+     */
+    private static final SortedMap<String, CatalogProduct> productsByNameIgnoringCase = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    /**
+     * The index of the loaded catalog, or null while the catalog is loading.
+     */
+    private static volatile Index index;
     /**
      * The ID of the product.
      */
@@ -30,19 +53,28 @@ public class CatalogProduct {
      */
     public String name;
     /**
-     * The recommended price of the product.
+     * The recommended price of the product in cents.
      */
-    public double recommendedPrice;
+    public long recommendedPrice;
     /**
      * The list of components that make up the product.
      */
     private final ArrayList<Component> components;
+    /**
+     * The bill of materials of the product, computed once from its components.
+     */
+    private final BillOfMaterials billOfMaterials;
+    /**
+     * The expansion of the component tree of the product, computed once from the
+     * plans of its components.
+     */
+    private final BuildPlan buildPlan;
 
     /**
      * Constructor for CatalogProduct class.
      *
      * @param name             the name of the product
-     * @param recommendedPrice the recommended price of the product
+     * @param recommendedPrice the recommended price of the product in units of money
      * @param components       the list of components that make up the product
      */
     @JsonCreator
@@ -51,11 +83,16 @@ public class CatalogProduct {
                           @JsonProperty("components") ArrayList<Component> components) {
         this.id = nextId++;
         this.name = name.toLowerCase();
-        this.recommendedPrice = recommendedPrice;
+        this.recommendedPrice = Money.toCents(recommendedPrice);
         this.components = components;
+        this.billOfMaterials = new BillOfMaterials(components, this.recommendedPrice);
+        this.buildPlan = new BuildPlan(this);
 
         /**Add the newly created instance to the catalog*/
         catalog.add(this);
+        productsByName.putIfAbsent(this.name, this);
+        productsByName.putIfAbsent(name, this);
+        productsByNameIgnoringCase.putIfAbsent(this.name, this);
     }
 
     /**
@@ -71,6 +108,7 @@ public class CatalogProduct {
 
             if (catalogNode != null) {
                 mapper.readValue(catalogNode.toString(), CatalogProduct[].class);
+                index = new Index(catalog, productsByName, productsByNameIgnoringCase);
             } else {
                 throw new LoadError("The 'catalog' key is missing in the JSON file");
             }
@@ -87,8 +125,13 @@ public class CatalogProduct {
      * such product exists.
      */
     public static CatalogProduct getProductByName(String productName) {
-        return catalog.stream().filter(product -> product.name.equals(productName.toLowerCase())).findFirst()
-                .orElse(null);
+        Index current = index;
+        CatalogProduct product = (current != null ? current.byName : productsByName).get(productName);
+        if (product == null) {
+            /**Names in any other case are compared ignoring case, without converting them*/
+            product = (current != null ? current.byNameIgnoringCase : productsByNameIgnoringCase).get(productName);
+        }
+        return product;
     }
 
     /**
@@ -99,6 +142,10 @@ public class CatalogProduct {
      * product exists.
      */
     public static CatalogProduct getProductById(int id) {
+        Index current = index;
+        if (current != null) {
+            return id >= 0 && id < current.byId.length ? current.byId[id] : null;
+        }
         return catalog.stream().filter(product -> product.id == id).findFirst().orElse(null);
     }
 
@@ -124,9 +171,9 @@ public class CatalogProduct {
     /**
      * Retrieves the recommended price of the product.
      *
-     * @return The recommended price of the product.
+     * @return The recommended price of the product in cents.
      */
-    public double getRecommendedPrice() {
+    public long getRecommendedPrice() {
         return recommendedPrice;
     }
 
@@ -139,16 +186,383 @@ public class CatalogProduct {
         return name;
     }
 
-    public double getComponentsPrice() {
-        return this.components.stream()
-                .mapToDouble(component -> component.getProduct().getRecommendedPrice() * component.getQuantity())
-                .sum();
+    /**
+     * Retrieves the bill of materials of the product.
+     *
+     * @return The bill of materials of the product.
+     */
+    public BillOfMaterials getBillOfMaterials() {
+        return billOfMaterials;
+    }
+
+    /**
+     * Retrieves the build plan of the product.
+     *
+     * @return The build plan of the product.
+     */
+    public BuildPlan getBuildPlan() {
+        return buildPlan;
+    }
+
+    /**
+     * Retrieves the recommended price of all components of one unit of the product.
+     *
+     * @return The price of the components in cents.
+     */
+    public long getComponentsPrice() {
+        return billOfMaterials.getTotalCost();
+    }
+
+    /**
+     * Retrieves the recommended price of the given component in one unit of the
+     * product.
+     *
+     * @param searchComponent the component to get the price for
+     * @return The price of the component in cents, or 0 if the product is not made
+     * of it.
+     */
+    public long getComponentsPrice(CatalogProduct searchComponent) {
+        int index = billOfMaterials.indexOf(searchComponent.id);
+        return index < 0 ? 0 : billOfMaterials.getCost(index);
+    }
+
+    /**
+     * The BillOfMaterials class holds the components of one unit of a product as
+     * flat arrays. Components that are listed more than once are merged, and
+     * every material carries its quantity, its recommended cost and its budget,
+     * the share of the recommended price of the product that falls on it. The
+     * components of a product cannot change after it is loaded, so the bill is
+     * computed once when the product is created.
+     */
+    public static final class BillOfMaterials {
+        /**
+         * The ID and quantity of every material as consecutive pairs.
+         */
+        private final int[] entries;
+        private final CatalogProduct[] materials;
+        private final long[] costs;
+        private final long[] budgets;
+        private final long totalCost;
+
+        private BillOfMaterials(List<Component> components, long recommendedPrice) {
+            int size = 0;
+            int[] entries = new int[components == null ? 0 : components.size() * 2];
+            CatalogProduct[] materials = new CatalogProduct[entries.length / 2];
+            long totalCost = 0;
+            if (components != null) {
+                for (Component component : components) {
+                    int i = 0;
+                    while (i < size && materials[i] != component.getProduct()) {
+                        i++;
+                    }
+                    if (i == size) {
+                        materials[size] = component.getProduct();
+                        entries[2 * size] = component.getProduct().id;
+                        size++;
+                    }
+                    entries[2 * i + 1] += component.getQuantity();
+                    totalCost += component.getProduct().getRecommendedPrice() * component.getQuantity();
+                }
+            }
+            this.entries = Arrays.copyOf(entries, size * 2);
+            this.materials = Arrays.copyOf(materials, size);
+            this.costs = new long[size];
+            this.budgets = new long[size];
+            for (int i = 0; i < size; i++) {
+                costs[i] = this.materials[i].getRecommendedPrice() * this.entries[2 * i + 1];
+                budgets[i] = totalCost == 0 ? 0 : costs[i] * recommendedPrice / totalCost;
+            }
+            this.totalCost = totalCost;
+        }
+
+        /**
+         * Returns the number of distinct materials.
+         *
+         * @return the number of materials
+         */
+        public int size() {
+            return materials.length;
+        }
+
+        /**
+         * Returns the material at the given index.
+         *
+         * @param index the index of the material
+         * @return the material
+         */
+        public CatalogProduct getMaterial(int index) {
+            return materials[index];
+        }
+
+        /**
+         * Returns the ID of the material at the given index.
+         *
+         * @param index the index of the material
+         * @return the ID of the material
+         */
+        public int getMaterialId(int index) {
+            return entries[2 * index];
+        }
+
+        /**
+         * Returns the quantity of the material at the given index needed for one unit.
+         *
+         * @param index the index of the material
+         * @return the quantity of the material
+         */
+        public int getQuantity(int index) {
+            return entries[2 * index + 1];
+        }
+
+        /**
+         * Returns the recommended cost in cents of the material at the given index
+         * for one unit.
+         *
+         * @param index the index of the material
+         * @return the cost of the material
+         */
+        public long getCost(int index) {
+            return costs[index];
+        }
+
+        /**
+         * Returns the share in cents of the recommended price of one unit that falls
+         * on the material at the given index.
+         *
+         * @param index the index of the material
+         * @return the budget of the material
+         */
+        public long getBudget(int index) {
+            return budgets[index];
+        }
+
+        /**
+         * Returns the recommended cost in cents of all materials for one unit.
+         *
+         * @return the total cost of the materials
+         */
+        public long getTotalCost() {
+            return totalCost;
+        }
+
+        /**
+         * Returns the index of the material with the given ID.
+         *
+         * @param materialId the ID of the material
+         * @return the index of the material, or -1 if the product is not made of it
+         */
+        public int indexOf(int materialId) {
+            for (int i = 0; i < materials.length; i++) {
+                if (entries[2 * i] == materialId) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The BuildPlan class is the expansion of the component tree of a product. It
+     * lists the product and every sub-assembly worth building in topological
+     * order, parents before their components, together with the materials that
+     * are bought instead. A component is built when its own materials cost less
+     * than its recommended price, otherwise it is bought. Components are always
+     * created before the products made of them, so the unit cost of every
+     * component is known when a plan is computed and each plan is computed once.
+     */
+    public static final class BuildPlan {
+        private final CatalogProduct[] nodes;
+        /**
+         * The edges of every node, as the range from edgeStarts[i] to
+         * edgeStarts[i + 1] in the edge arrays.
+         */
+        private final int[] edgeStarts;
+        private final int[] edgeNodes;
+        private final int[] edgeQuantities;
+        private final boolean[] assembled;
+        private final long[] budgets;
+        /**
+         * The cheapest recommended cost of one unit, either building or buying it.
+         */
+        private final long unitCost;
+        /**
+         * Whether building one unit from its materials is cheaper than buying it.
+         */
+        private final boolean cheaperToBuild;
+
+        private BuildPlan(CatalogProduct product) {
+            BillOfMaterials materials = product.billOfMaterials;
+            long buildCost = 0;
+            for (int i = 0; i < materials.size(); i++) {
+                buildCost += materials.getMaterial(i).buildPlan.unitCost * materials.getQuantity(i);
+            }
+            this.cheaperToBuild = materials.size() > 0 && buildCost < product.recommendedPrice;
+            this.unitCost = cheaperToBuild ? buildCost : product.recommendedPrice;
+
+            /**Order the product and the sub-assemblies to build, parents before their components*/
+            ArrayList<CatalogProduct> postOrder = new ArrayList<>();
+            visit(product, true, new HashSet<>(), postOrder);
+            int size = postOrder.size();
+            this.nodes = new CatalogProduct[size];
+            Map<CatalogProduct, Integer> indexes = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                nodes[i] = postOrder.get(size - 1 - i);
+                indexes.put(nodes[i], i);
+            }
+            this.assembled = new boolean[size];
+            this.budgets = new long[size];
+            this.edgeStarts = new int[size + 1];
+            int edges = 0;
+            for (int i = 0; i < size; i++) {
+                assembled[i] = i == 0 || nodes[i].buildPlan.cheaperToBuild;
+                if (assembled[i]) {
+                    edges += nodes[i].billOfMaterials.size();
+                }
+            }
+            this.edgeNodes = new int[edges];
+            this.edgeQuantities = new int[edges];
+
+            /**Link the nodes and pass the budget of every node on to its materials*/
+            budgets[0] = product.recommendedPrice;
+            int edge = 0;
+            for (int i = 0; i < size; i++) {
+                edgeStarts[i] = edge;
+                if (!assembled[i]) {
+                    continue;
+                }
+                BillOfMaterials bill = nodes[i].billOfMaterials;
+                for (int m = 0; m < bill.size(); m++) {
+                    int node = indexes.get(bill.getMaterial(m));
+                    edgeNodes[edge] = node;
+                    edgeQuantities[edge] = bill.getQuantity(m);
+                    long budget = nodes[i].recommendedPrice == 0 ? 0
+                            : bill.getBudget(m) * budgets[i] / nodes[i].recommendedPrice;
+                    budgets[node] = Math.max(budgets[node], budget);
+                    edge++;
+                }
+            }
+            edgeStarts[size] = edge;
+        }
+
+        private static void visit(CatalogProduct product, boolean expand, Set<CatalogProduct> visited,
+                                  List<CatalogProduct> postOrder) {
+            if (!visited.add(product)) {
+                return;
+            }
+            if (expand) {
+                BillOfMaterials materials = product.billOfMaterials;
+                for (int i = 0; i < materials.size(); i++) {
+                    CatalogProduct material = materials.getMaterial(i);
+                    visit(material, material.buildPlan.cheaperToBuild, visited, postOrder);
+                }
+            }
+            postOrder.add(product);
+        }
+
+        /**
+         * Returns the number of nodes of the plan. The product itself is node 0.
+         *
+         * @return the number of nodes
+         */
+        public int size() {
+            return nodes.length;
+        }
+
+        /**
+         * Returns the product of the given node.
+         *
+         * @param node the index of the node
+         * @return the product of the node
+         */
+        public CatalogProduct getProduct(int node) {
+            return nodes[node];
+        }
+
+        /**
+         * Checks if the given node is built from its materials rather than bought.
+         *
+         * @param node the index of the node
+         * @return true if the node is built, false if it is bought
+         */
+        public boolean isAssembled(int node) {
+            return assembled[node];
+        }
+
+        /**
+         * Returns the highest unit price in cents to pay when the given node is bought.
+         *
+         * @param node the index of the node
+         * @return the budget of the node
+         */
+        public long getBudget(int node) {
+            return budgets[node];
+        }
+
+        /**
+         * Returns the index of the first edge of the given node.
+         *
+         * @param node the index of the node
+         * @return the index of the first edge
+         */
+        public int getEdgeStart(int node) {
+            return edgeStarts[node];
+        }
+
+        /**
+         * Returns the index after the last edge of the given node.
+         *
+         * @param node the index of the node
+         * @return the index after the last edge
+         */
+        public int getEdgeEnd(int node) {
+            return edgeStarts[node + 1];
+        }
+
+        /**
+         * Returns the node of the material of the given edge.
+         *
+         * @param edge the index of the edge
+         * @return the index of the material node
+         */
+        public int getEdgeNode(int edge) {
+            return edgeNodes[edge];
+        }
+
+        /**
+         * Returns the quantity of the material of the given edge needed for one unit.
+         *
+         * @param edge the index of the edge
+         * @return the quantity of the material
+         */
+        public int getEdgeQuantity(int edge) {
+            return edgeQuantities[edge];
+        }
     }
 
-    public double getComponentsPrice(CatalogProduct searchComponent) {
-        return this.components.stream().filter(component -> component.getProduct().equals(searchComponent))
-                .mapToDouble(component -> component.getProduct().getRecommendedPrice() * component.getQuantity())
-                .sum();
+    /**
+     * The Index class is an immutable index of the loaded catalog, with a dense
+     * array by product ID, a hash map by product name in lower case and as written
+     * in the catalog, and a sorted map by product name ignoring case.
+     */
+    private static final class Index {
+        private final CatalogProduct[] byId;
+        private final Map<String, CatalogProduct> byName;
+        private final SortedMap<String, CatalogProduct> byNameIgnoringCase;
+
+        private Index(List<CatalogProduct> products, Map<String, CatalogProduct> names, SortedMap<String, CatalogProduct> namesIgnoringCase) {
+            int size = 0;
+            for (CatalogProduct product : products) {
+                size = Math.max(size, product.id + 1);
+            }
+            this.byId = new CatalogProduct[size];
+            for (CatalogProduct product : products) {
+                if (byId[product.id] == null) {
+                    byId[product.id] = product;
+                }
+            }
+            this.byName = Map.copyOf(names);
+            this.byNameIgnoringCase = Collections.unmodifiableSortedMap(new TreeMap<>(namesIgnoringCase));
+        }
     }
 
     /**
@@ -192,21 +606,4 @@ public class CatalogProduct {
         }
 
     }
-
-    /**
-     * The Product class sets the id of the products.
-     */
-    public static class Product {
-        private static int nextId = 1;
-
-        public int id;
-
-        /**
-         * Constructor for Product class.
-         */
-        public Product() {
-            this.id = nextId;
-            nextId++;
-        }
-    }
 }
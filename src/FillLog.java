@@ -0,0 +1,88 @@
+import java.util.Arrays;
+
+/**
+ * The FillLog class records the fills of the orders of one order book as
+ * primitive records: the issuer, the side, the quantity and the unit price of
+ * every fill are kept in parallel arrays. The arrays only grow while the book
+ * gets busier, so recording a fill in a steady round allocates nothing. At the
+ * end of the round the fills are added to the histories of the market and the
+ * players, the fills of the sellers are added to the price bars at the price
+ * the sellers received, and the log is reset.
+ */
+public class FillLog {
+    private Player[] issuers;
+    private boolean[] buys;
+    private int[] quantities;
+    private long[] prices;
+    private int size;
+
+    /**
+     * Constructs an empty fill log.
+     */
+    public FillLog() {
+        this.issuers = new Player[16];
+        this.buys = new boolean[16];
+        this.quantities = new int[16];
+        this.prices = new long[16];
+        this.size = 0;
+    }
+
+    /**
+     * Records a fill of the given order.
+     *
+     * @param order     the order that was filled
+     * @param quantity  the filled quantity
+     * @param priceUnit the unit price in cents the quantity was filled at
+     */
+    public void record(Order order, int quantity, long priceUnit) {
+        if (size == issuers.length) {
+            grow();
+        }
+        issuers[size] = order.getIssuer();
+        buys[size] = order.isBuyOrder();
+        quantities[size] = quantity;
+        prices[size] = priceUnit;
+        size++;
+    }
+
+    /**
+     * Adds all recorded fills to the history of their issuer and to the given
+     * market history, and the fills of the sellers to the given price series in
+     * the order they were filled, then clears the log.
+     *
+     * @param round         the round the fills belong to
+     * @param product       the product of the order book
+     * @param marketHistory the history of the market
+     * @param priceSeries   the price bars of the market
+     */
+    public void recordInto(int round, CatalogProduct product, History marketHistory, PriceSeries priceSeries) {
+        for (int i = 0; i < size; i++) {
+            int bought = buys[i] ? quantities[i] : 0;
+            int sold = buys[i] ? 0 : quantities[i];
+            issuers[i].getHistory().addBuySellRecord(round, product, bought, sold, 0, 0);
+            marketHistory.addBuySellRecord(round, product, bought, sold, 0, 0);
+            if (!buys[i]) {
+                priceSeries.record(product, quantities[i], prices[i]);
+            }
+            issuers[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * Returns the number of recorded fills.
+     *
+     * @return the number of recorded fills
+     */
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        int length = issuers.length * 2;
+        issuers = Arrays.copyOf(issuers, length);
+        buys = Arrays.copyOf(buys, length);
+        quantities = Arrays.copyOf(quantities, length);
+        prices = Arrays.copyOf(prices, length);
+    }
+}
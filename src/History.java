@@ -1,27 +1,160 @@
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * The History class maintains a record of buying and selling activities, and the desired and actual consumption
- * of products in each round of a simulation.
+ * of products in each round of a simulation. The counters are stored in columns, one primitive array per metric
+ * indexed by round * productCount + productId, so recording and querying a counter is a constant-time array access.
+ * Only the most recent rounds are kept in detail: the columns are a ring of Main.historyRetainedRounds rounds, and a
+ * round that falls out of the window only lives on in the totals over all rounds.
+ * A history that is shared by many threads, like the one of the market, records the open round into striped atomic
+ * counters instead, which are merged into the columns when the round is published. The counts stay exact and the
+ * threads rarely update the same counters.
  */
 public class History {
     /**
-     * The history Map stores the ProductRecord objects for each product in each round of the simulation.
+     * The number of products in the catalog, the width of one round in the columns.
      */
-    private final Map<Integer, Map<CatalogProduct, ProductRecord>> historyProRound;
-    private final Map<CatalogProduct, ProductRecord> summary;
+    private final int productCount;
+    private final Column bought;
+    private final Column sold;
+    private final Column desiredSell;
+    private final Column desiredBuy;
+    private final Column consumed;
+    /**
+     * The number of rounds kept in detail in the columns.
+     */
+    private final int window;
+    /**
+     * The newest round recorded in the columns, or -1 before the first record.
+     */
+    private int newestRound;
+    /**
+     * The totals over all rounds, indexed by product ID.
+     */
+    private final int[] totalBought;
+    private final int[] totalSold;
+    private final int[] totalDesiredSell;
+    private final int[] totalDesiredBuy;
+    private final int[] totalConsumed;
+    /**
+     * The snapshot of the last finished round, published at the round boundary.
+     */
+    private volatile RoundSnapshot previousRound;
+    /**
+     * The striped counters of the open round, or null if the history is only
+     * written by one thread at a time. Every stripe holds the metrics of all
+     * products, the metrics of one product next to each other.
+     */
+    private final AtomicIntegerArray[] stripes;
+    /**
+     * The round recorded in the stripes, the one after the last published round.
+     */
+    private volatile int openRound;
+
+    private static final int BOUGHT = 0;
+    private static final int SOLD = 1;
+    private static final int DESIRED_SELL = 2;
+    private static final int DESIRED_BUY = 3;
+    private static final int CONSUMED = 4;
+    private static final int METRICS = 5;
 
     /**
-     * Constructs a new History object with an empty ConcurrentHashMap.
+     * Constructs a new, empty History object for the products of the catalog,
+     * written by one thread at a time.
      */
     public History() {
-        historyProRound = new ConcurrentHashMap<>();
-        summary = new ConcurrentHashMap<>();
+        this(false);
     }
 
     /**
-     * Adds a new ProductRecord object to the history Map for the given round and CatalogProduct.
+     * Constructs a new, empty History object for the products of the catalog.
+     *
+     * @param shared true if many threads record into the history at the same time
+     */
+    public History(boolean shared) {
+        productCount = CatalogProduct.getCatalog().size();
+        window = Math.max(1, Main.historyRetainedRounds);
+        newestRound = -1;
+        long capacity = (long) window * productCount;
+        bought = new Column(capacity);
+        sold = new Column(capacity);
+        desiredSell = new Column(capacity);
+        desiredBuy = new Column(capacity);
+        consumed = new Column(capacity);
+        totalBought = new int[productCount];
+        totalSold = new int[productCount];
+        totalDesiredSell = new int[productCount];
+        totalDesiredBuy = new int[productCount];
+        totalConsumed = new int[productCount];
+        previousRound = RoundSnapshot.EMPTY;
+        if (shared) {
+            int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4 - 1)) << 1;
+            stripes = new AtomicIntegerArray[count];
+            for (int i = 0; i < count; i++) {
+                stripes[i] = new AtomicIntegerArray(productCount * METRICS);
+            }
+        } else {
+            stripes = null;
+        }
+    }
+
+    /**
+     * Returns the stripe of the current thread, chosen by its identity hash. The
+     * identity hash is random per thread, so the threads spread evenly over the
+     * stripes even if their IDs are not dense, as for virtual threads.
+     */
+    private AtomicIntegerArray stripe() {
+        int hash = System.identityHashCode(Thread.currentThread()) * 0x9E3779B9;
+        return stripes[(hash >>> 16) & (stripes.length - 1)];
+    }
+
+    private static void add(AtomicIntegerArray stripe, int cell, int value) {
+        if (value != 0) {
+            stripe.getAndAdd(cell, value);
+        }
+    }
+
+    private int index(int round, CatalogProduct product) {
+        return round % window * productCount + product.id;
+    }
+
+    /**
+     * Checks if the given round is kept in detail in the columns.
+     */
+    private boolean isRetained(int round) {
+        return round <= newestRound && round > newestRound - window;
+    }
+
+    /**
+     * Moves the window forward to the given round if it is newer than all
+     * recorded rounds, clearing the slots of the rounds that fall out of it.
+     *
+     * @return true if the round is kept in detail, false if it is too old
+     */
+    private boolean retain(int round) {
+        if (round > newestRound) {
+            for (int next = Math.max(newestRound + 1, round - window + 1); next <= round; next++) {
+                if (next >= window) {
+                    int from = next % window * productCount;
+                    bought.clear(from, productCount);
+                    sold.clear(from, productCount);
+                    desiredSell.clear(from, productCount);
+                    desiredBuy.clear(from, productCount);
+                    consumed.clear(from, productCount);
+                }
+            }
+            newestRound = round;
+        }
+        return round > newestRound - window;
+    }
+
+    private int get(Column column, int round, CatalogProduct product) {
+        return isRetained(round) ? column.get(index(round, product)) : 0;
+    }
+
+    /**
+     * Adds the given quantities to the counters of the given round and CatalogProduct.
      *
      * @param round       the round of the simulation
      * @param product     the CatalogProduct being bought and sold
@@ -31,33 +164,112 @@ public class History {
      * @param desiredBuy  the desired number of units to buy
      */
     public void addBuySellRecord(int round, CatalogProduct product, int bought, int sold, int desiredSell, int desiredBuy) {
-        Map<CatalogProduct, ProductRecord> roundMap = historyProRound.computeIfAbsent(round, k -> new ConcurrentHashMap<>());
-        ProductRecord record = roundMap.computeIfAbsent(product, k -> new ProductRecord(0, 0, 0, 0));
-        record.desiredBuy += desiredBuy;
-        record.bought += bought;
-        record.desiredSell += desiredSell;
-        record.sold += sold;
-        this.updateSummary(product, bought, sold, desiredSell, desiredBuy);
+        if (stripes != null) {
+            if (round == openRound) {
+                AtomicIntegerArray stripe = stripe();
+                int base = product.id * METRICS;
+                add(stripe, base + BOUGHT, bought);
+                add(stripe, base + SOLD, sold);
+                add(stripe, base + DESIRED_SELL, desiredSell);
+                add(stripe, base + DESIRED_BUY, desiredBuy);
+            } else {
+                synchronized (this) {
+                    record(round, product, bought, sold, desiredSell, desiredBuy);
+                }
+            }
+            return;
+        }
+        record(round, product, bought, sold, desiredSell, desiredBuy);
+    }
+
+    private void record(int round, CatalogProduct product, int bought, int sold, int desiredSell, int desiredBuy) {
+        if (retain(round)) {
+            int index = index(round, product);
+            this.bought.add(index, bought);
+            this.sold.add(index, sold);
+            this.desiredSell.add(index, desiredSell);
+            this.desiredBuy.add(index, desiredBuy);
+        }
+        totalBought[product.id] += bought;
+        totalSold[product.id] += sold;
+        totalDesiredSell[product.id] += desiredSell;
+        totalDesiredBuy[product.id] += desiredBuy;
+    }
+
+    /**
+     * Adds the given quantity to the consumed counter of the given round and CatalogProduct.
+     *
+     * @param round    the round of the simulation
+     * @param product  the CatalogProduct being consumed
+     * @param consumed the number of units consumed
+     */
+    public void addConsumedRecord(int round, CatalogProduct product, int consumed) {
+        if (stripes != null) {
+            if (round == openRound) {
+                add(stripe(), product.id * METRICS + CONSUMED, consumed);
+            } else {
+                synchronized (this) {
+                    recordConsumed(round, product, consumed);
+                }
+            }
+            return;
+        }
+        recordConsumed(round, product, consumed);
+    }
+
+    private void recordConsumed(int round, CatalogProduct product, int consumed) {
+        if (retain(round)) {
+            this.consumed.add(index(round, product), consumed);
+        }
+        totalConsumed[product.id] += consumed;
+    }
+
+    /**
+     * Freezes the counters of the given round into an immutable snapshot, which is
+     * returned by getPreviousRound from now on. The striped counters of a shared
+     * history are merged first, so the counters of the open round can only be read
+     * once it is published. Must be called once the round is finished, while no
+     * orders are traded.
+     *
+     * @param round the round that has just finished
+     */
+    public void publishSnapshot(int round) {
+        if (stripes != null) {
+            synchronized (this) {
+                mergeStripes(round);
+                openRound = round + 1;
+            }
+        }
+        if (!isRetained(round)) {
+            /**Nothing was recorded in the round*/
+            previousRound = new RoundSnapshot(new int[0], new int[0], new int[0], new int[0]);
+            return;
+        }
+        int from = round % window * productCount;
+        previousRound = new RoundSnapshot(bought.copy(from, productCount), sold.copy(from, productCount),
+                desiredSell.copy(from, productCount), desiredBuy.copy(from, productCount));
     }
 
-    private void updateSummary(CatalogProduct product, int bought, int sold, int desiredSell, int desiredBuy) {
-        ProductRecord record = summary.computeIfAbsent(product, k -> new ProductRecord(0, 0, 0, 0));
-        record.desiredBuy += desiredBuy;
-        record.bought += bought;
-        record.desiredSell += desiredSell;
-        record.sold += sold;
+    private void mergeStripes(int round) {
+        for (AtomicIntegerArray stripe : stripes) {
+            for (int id = 0; id < productCount; id++) {
+                int base = id * METRICS;
+                CatalogProduct product = CatalogProduct.getProductById(id);
+                record(round, product, stripe.getAndSet(base + BOUGHT, 0), stripe.getAndSet(base + SOLD, 0),
+                        stripe.getAndSet(base + DESIRED_SELL, 0), stripe.getAndSet(base + DESIRED_BUY, 0));
+                recordConsumed(round, product, stripe.getAndSet(base + CONSUMED, 0));
+            }
+        }
     }
 
     /**
-     * Returns the ProductRecord for a given round and product.
-     * If no record is found for the given round and product, a new ProductRecord is created with default values (0 for all fields).
+     * Returns the snapshot of the last finished round. It is read without locks,
+     * so pricing an order does not touch the columns the market thread is writing to.
      *
-     * @param round   the round number for which the record is requested
-     * @param product the CatalogProduct for which the record is requested
-     * @return the ProductRecord for the given round and product
+     * @return the snapshot of the previous round
      */
-    public ProductRecord getRecord(int round, CatalogProduct product) {
-        return historyProRound.getOrDefault(round, new ConcurrentHashMap<>()).getOrDefault(product, new ProductRecord(0, 0, 0, 0));
+    public RoundSnapshot getPreviousRound() {
+        return previousRound;
     }
 
     /**
@@ -68,7 +280,7 @@ public class History {
      * @return the total quantity of the given product bought in the given round
      */
     public int getBought(int round, CatalogProduct product) {
-        return getRecord(round, product).bought;
+        return get(bought, round, product);
     }
 
     /**
@@ -79,7 +291,7 @@ public class History {
      * @return the total quantity of the given product sold in the given round
      */
     public int getSold(int round, CatalogProduct product) {
-        return getRecord(round, product).sold;
+        return get(sold, round, product);
     }
 
     /**
@@ -90,7 +302,7 @@ public class History {
      * @return the desired quantity of the given product to be sold in the given round
      */
     public int getDesiredSell(int round, CatalogProduct product) {
-        return getRecord(round, product).desiredSell;
+        return get(desiredSell, round, product);
     }
 
     /**
@@ -101,24 +313,30 @@ public class History {
      * @return the desired quantity of the given product to be bought in the given round
      */
     public int getDesiredBuy(int round, CatalogProduct product) {
-        return getRecord(round, product).desiredBuy;
+        return get(desiredBuy, round, product);
+    }
+
+    /**
+     * Returns the quantity of the given product consumed in the given round.
+     *
+     * @param round   the round number for which the quantity is requested
+     * @param product the CatalogProduct for which the quantity is requested
+     * @return the quantity of the given product consumed in the given round
+     */
+    public int getConsumed(int round, CatalogProduct product) {
+        return get(consumed, round, product);
     }
 
     /**
      * Prints a summary of buying and selling activities for all rounds.
-     * The method iterates over the summary map and prints the product name along with
-     * the desired sell, actual sell, desired buy, and actual buy quantities for each product.
+     * The method iterates over the products of the catalog and prints, for every product with any activity, the
+     * product name along with the desired sell, actual sell, desired buy, and actual buy quantities.
      */
     public void printSummary() {
         System.out.println("Summary of buying and selling activities:");
-        for (Map.Entry<CatalogProduct, ProductRecord> entry : summary.entrySet()) {
-            String productName = entry.getKey().getName();
-            ProductRecord productRecord = entry.getValue();
-            System.out.println("    " + productName + ":");
-            System.out.println("        Desired sell: " + productRecord.desiredSell);
-            System.out.println("        Actual sell: " + productRecord.sold);
-            System.out.println("        Desired buy: " + productRecord.desiredBuy);
-            System.out.println("        Actual buy: " + productRecord.bought);
+        for (CatalogProduct product : CatalogProduct.getCatalog()) {
+            int id = product.id;
+            printRecord(product, totalDesiredSell[id], totalSold[id], totalDesiredBuy[id], totalBought[id]);
         }
 
 
@@ -127,67 +345,171 @@ public class History {
     /**
      * Prints a summary of buying and selling activities for the current round only.
      * The method retrieves the current round number from the Main class, then iterates over
-     * the historyProRound map for the current round and prints the product name along with
-     * the desired sell, actual sell, desired buy, and actual buy quantities for each product.
+     * the products of the catalog and prints, for every product with any activity in the round, the product name
+     * along with the desired sell, actual sell, desired buy, and actual buy quantities.
      */
     public void printRoundSummary() {
         System.out.println("Summary of buying and selling activities:");
         int i = Main.currentRound;
         System.out.println("Round " + (i + 1) + ":");
-        for (Map.Entry<CatalogProduct, ProductRecord> entry : historyProRound.get(i).entrySet()) {
-            String productName = entry.getKey().getName();
-            ProductRecord productRecord = entry.getValue();
-            System.out.println("    " + productName + ":");
-            System.out.println("        Desired sell: " + productRecord.desiredSell);
-            System.out.println("        Actual sell: " + productRecord.sold);
-            System.out.println("        Desired buy: " + productRecord.desiredBuy);
-            System.out.println("        Actual buy: " + productRecord.bought);
+        for (CatalogProduct product : CatalogProduct.getCatalog()) {
+            printRecord(product, getDesiredSell(i, product), getSold(i, product), getDesiredBuy(i, product),
+                    getBought(i, product));
+        }
+    }
+
+    private static void printRecord(CatalogProduct product, int desiredSell, int sold, int desiredBuy, int bought) {
+        if (desiredSell == 0 && sold == 0 && desiredBuy == 0 && bought == 0) {
+            return;
         }
+        System.out.println("    " + product.getName() + ":");
+        System.out.println("        Desired sell: " + desiredSell);
+        System.out.println("        Actual sell: " + sold);
+        System.out.println("        Desired buy: " + desiredBuy);
+        System.out.println("        Actual buy: " + bought);
     }
 
     /**
-     * ProductRecord class represents the buying and selling activities, and the desired and actual consumption
-     * of a single product in a round of the simulation.
+     * The Column class is a growable primitive array of the counters of one metric.
+     * It is split into fixed blocks that are allocated when a counter in them is
+     * first written, so growing only copies the block directory and never the
+     * counters, and a write that races with the growth of another block is not
+     * lost. Blocks of rounds without activity are never allocated. A column
+     * that holds less than one full block is kept in a single block of its size.
      */
-    private static class ProductRecord {
-        int desiredSell;
-        int sold;
-        int desiredBuy;
-        int bought;
-        int desiredConsumption;
-        int consumed;
+    private static final class Column {
+        private static final int MAX_BLOCK_SHIFT = 14;
+
+        private final int blockShift;
+        private final int blockMask;
+        private volatile int[][] blocks = new int[0][];
+
+        private Column(long capacity) {
+            this.blockShift = capacity >= 1 << MAX_BLOCK_SHIFT ? MAX_BLOCK_SHIFT
+                    : 32 - Integer.numberOfLeadingZeros((int) Math.max(1, capacity - 1));
+            this.blockMask = (1 << blockShift) - 1;
+        }
+
+        private void add(int index, int value) {
+            if (value != 0) {
+                block(index >>> blockShift)[index & blockMask] += value;
+            }
+        }
+
+        private int get(int index) {
+            int[][] current = blocks;
+            int block = index >>> blockShift;
+            if (block >= current.length || current[block] == null) {
+                return 0;
+            }
+            return current[block][index & blockMask];
+        }
 
         /**
-         * Constructs a new ProductRecord object with the given values.
-         *
-         * @param bought             the number of units bought
-         * @param sold               the number of units sold
-         * @param desiredSell        the desired number of units to sell
-         * @param desiredBuy         the desired number of units to buy
-         * @param desiredConsumption the desired number of units to consume
-         * @param consumed           the number of units consumed
+         * Sets the counters of the given range to zero.
+         */
+        private void clear(int from, int length) {
+            int[][] current = blocks;
+            for (int index = from; index < from + length; index++) {
+                int block = index >>> blockShift;
+                if (block < current.length && current[block] != null) {
+                    current[block][index & blockMask] = 0;
+                }
+            }
+        }
+
+        /**
+         * Copies the counters of the given range into a new array.
          */
-        private ProductRecord(int bought, int sold, int desiredSell, int desiredBuy, int desiredConsumption, int consumed) {
+        private int[] copy(int from, int length) {
+            int[] counters = new int[length];
+            for (int i = 0; i < length; i++) {
+                counters[i] = get(from + i);
+            }
+            return counters;
+        }
+
+        private int[] block(int block) {
+            int[][] current = blocks;
+            if (block < current.length && current[block] != null) {
+                return current[block];
+            }
+            synchronized (this) {
+                current = blocks;
+                if (block >= current.length) {
+                    current = Arrays.copyOf(current, Math.max(block + 1, current.length * 2));
+                }
+                if (current[block] == null) {
+                    current[block] = new int[1 << blockShift];
+                }
+                blocks = current;
+                return current[block];
+            }
+        }
+    }
+
+    /**
+     * The RoundSnapshot class is an immutable copy of the counters of one round.
+     * The counters are stored in primitive arrays indexed by the ID of the
+     * product, products without a record in the round read as zero.
+     */
+    public static final class RoundSnapshot {
+        private static final RoundSnapshot EMPTY = new RoundSnapshot(new int[0], new int[0], new int[0], new int[0]);
+
+        private final int[] bought;
+        private final int[] sold;
+        private final int[] desiredSell;
+        private final int[] desiredBuy;
+
+        private RoundSnapshot(int[] bought, int[] sold, int[] desiredSell, int[] desiredBuy) {
             this.bought = bought;
             this.sold = sold;
-            this.consumed = consumed;
             this.desiredSell = desiredSell;
             this.desiredBuy = desiredBuy;
-            this.desiredConsumption = desiredConsumption;
+        }
+
+        private static int get(int[] counters, CatalogProduct product) {
+            return product.id < counters.length ? counters[product.id] : 0;
         }
 
         /**
-         * Constructs a new ProductRecord object with the given values, setting the desired consumption and consumed
-         * fields to zero.
+         * Returns the quantity of the given product bought in the round.
          *
-         * @param bought      the number of units bought
-         * @param sold        the number of units sold
-         * @param desiredSell the desired number of units to sell
-         * @param desiredBuy  the desired number of units to buy
+         * @param product the product
+         * @return the quantity bought
          */
-        private ProductRecord(int bought, int sold, int desiredSell, int desiredBuy) {
-            new ProductRecord(bought, sold, desiredSell, desiredBuy, 0, 0);
+        public int getBought(CatalogProduct product) {
+            return get(bought, product);
+        }
+
+        /**
+         * Returns the quantity of the given product sold in the round.
+         *
+         * @param product the product
+         * @return the quantity sold
+         */
+        public int getSold(CatalogProduct product) {
+            return get(sold, product);
+        }
+
+        /**
+         * Returns the desired quantity of the given product to be sold in the round.
+         *
+         * @param product the product
+         * @return the desired quantity to sell
+         */
+        public int getDesiredSell(CatalogProduct product) {
+            return get(desiredSell, product);
+        }
+
+        /**
+         * Returns the desired quantity of the given product to be bought in the round.
+         *
+         * @param product the product
+         * @return the desired quantity to buy
+         */
+        public int getDesiredBuy(CatalogProduct product) {
+            return get(desiredBuy, product);
         }
     }
 }
-
@@ -1,23 +1,155 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * A singleton class that represents a log of messages for each round of a game.
  * Messages can be added to the current round, and all messages for a specific
  * round or for all rounds can be printed.
+ * <p>
+ * Adding a message never takes a lock: the message is offered to a lock-free
+ * ring buffer, and a background writer thread drains the ring buffer in order
+ * and files the messages under their round. When the ring buffer is full,
+ * DEBUG messages are dropped and all other messages are put into an unbounded
+ * overflow queue, so adding a message never blocks. The writer files the
+ * messages of both in the order they were added by each thread. Reading the
+ * messages of a round first waits until the writer has drained everything
+ * added before.
+ * <p>
+ * Only a window of recent rounds can be kept in memory. The writer thread then
+ * streams older rounds to an append-only file on disk, one line per message,
+ * and optionally closes the file every few rounds and compresses it with gzip.
+ * Messages of spilled rounds are read back from disk when they are requested.
  */
 public class Log {
+    /**
+     * The capacity of the ring buffer between the threads adding messages and the
+     * writer thread.
+     */
+    private static final int BUFFER_CAPACITY = 1 << 16;
+    /**
+     * The size of the buffer the spilled messages are written through.
+     */
+    private static final int SPILL_BUFFER_SIZE = 1 << 16;
+    /**
+     * The time the thread reading the log parks while waiting for the writer.
+     */
+    private static final long FLUSH_BACKOFF_NANOS = 50_000;
 
+    /**
+     * The messages of every round. Only written by the writer thread.
+     */
     private final Map<Integer, List<LogMessage>> roundToMessagesMap;
-    private int currentRound;
+    private volatile int currentRound;
+    /**
+     * The messages added but not yet filed by the writer thread.
+     */
+    private final MpscRingBuffer<LogMessage> buffer;
+    /**
+     * The messages added while the ring buffer was full.
+     */
+    private final Queue<LogMessage> overflow;
+    /**
+     * The number of messages put into the overflow queue.
+     */
+    private final AtomicLong overflowed;
+    /**
+     * The number of messages the writer thread has taken from the ring buffer.
+     * Only used by the writer thread.
+     */
+    private long takenFromBuffer;
+    private final Thread writer;
+    /**
+     * The number of messages the writer thread has filed.
+     */
+    private volatile long written;
+    /**
+     * The waiting boolean represents whether the writer thread is parked or about
+     * to park, and has to be unparked by the next added message.
+     */
+    private volatile boolean waiting;
+    /**
+     * The number of messages dropped because the ring buffer was full.
+     */
+    private final AtomicLong dropped;
+    /**
+     * The number of dropped messages already reported. Only used by the thread
+     * printing the log.
+     */
+    private long droppedReported;
+    /**
+     * Whether the text of the messages on the order and trade path is built. It
+     * is turned off in the allocation-free mode, where nobody reads the text of
+     * single trades.
+     */
+    private volatile boolean tradeTextEnabled = true;
+    /**
+     * The number of recent rounds kept in memory.
+     */
+    private volatile int retainedRounds = Integer.MAX_VALUE;
+    /**
+     * The number of rounds per spill file, or 0 to spill all rounds into one file
+     * that is never rotated.
+     */
+    private volatile int rotationRounds;
+    /**
+     * The directory of the spill files.
+     */
+    private volatile Path spillDirectory;
+    /**
+     * All rounds below this one have been spilled to disk.
+     */
+    private volatile int spilledRounds;
+    /**
+     * Guards the spill files, which are written by the writer thread and read by
+     * getMessages.
+     */
+    private final Object spillLock = new Object();
+    private final ByteBuffer spillBuffer = ByteBuffer.allocate(SPILL_BUFFER_SIZE);
+    private FileChannel spillChannel;
+    private int spillSegment = -1;
+    /**
+     * The extents of the spilled rounds in their plain spill file, as pairs of
+     * offset and length. A round has more than one extent if late messages were
+     * appended after it was spilled. Guarded by the spill lock.
+     */
+    private final Map<Integer, long[]> spillExtents = new HashMap<>();
+    /**
+     * The level of the least severe messages that are kept. Messages below it are
+     * dropped before their text is built.
+     */
+    private volatile int minimumLevel = Level.INFO.getLevel();
 
     /**
      * Private constructor to prevent instantiation. Initializes roundToMessagesMap
-     * as a synchronized map and sets currentRound to 0.
+     * as a synchronized map, sets currentRound to 0 and starts the writer thread.
      */
     private Log() {
         roundToMessagesMap = new ConcurrentHashMap<>();
         currentRound = 0;
+        buffer = new MpscRingBuffer<>(BUFFER_CAPACITY);
+        overflow = new ConcurrentLinkedQueue<>();
+        overflowed = new AtomicLong();
+        dropped = new AtomicLong();
+        writer = new Thread(this::write, "LogWriter");
+        writer.setDaemon(true);
+        writer.start();
     }
 
     /**
@@ -36,16 +168,137 @@ public class Log {
      */
     public void setRound(int round) {
         currentRound = round;
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Limits the messages kept in memory to the given number of recent rounds.
+     * Older rounds are spilled to disk by the writer thread.
+     *
+     * @param rounds         the number of recent rounds kept in memory
+     * @param directory      the directory of the spill files
+     * @param rotationRounds the number of rounds per spill file, after which the
+     *                       file is compressed with gzip, or 0 to keep one plain
+     *                       file
+     */
+    public void setRetention(int rounds, Path directory, int rotationRounds) {
+        if (rounds < 1) {
+            throw new IllegalArgumentException("At least one round must be kept in memory: " + rounds);
+        }
+        this.spillDirectory = directory;
+        this.rotationRounds = Math.max(rotationRounds, 0);
+        this.retainedRounds = rounds;
     }
 
     /**
-     * Adds a message to the current round.
+     * Sets the minimum level of the messages that are kept.
+     *
+     * @param level the least severe level that is kept
+     */
+    public void setMinimumLevel(Level level) {
+        minimumLevel = level.getLevel();
+    }
+
+    /**
+     * Checks if messages of the given level are kept.
+     *
+     * @param level the level of the message
+     * @return true if the message is kept, false if it is dropped
+     */
+    public boolean isEnabled(Level level) {
+        return level.getLevel() >= minimumLevel;
+    }
+
+    /**
+     * Sets whether the text of the messages on the order and trade path is built.
+     *
+     * @param enabled true to build the text, false to skip it
+     */
+    public void setTradeTextEnabled(boolean enabled) {
+        tradeTextEnabled = enabled;
+    }
+
+    /**
+     * Checks if the text of the messages on the order and trade path is built.
+     * Callers check this before concatenating the text of such a message.
+     *
+     * @return true if the text is built, false otherwise
+     */
+    public boolean isTradeTextEnabled() {
+        return tradeTextEnabled;
+    }
+
+    /**
+     * Adds a message to the current round. The message is handed to the writer
+     * thread without taking a lock and without blocking. If the writer has fallen
+     * so far behind that the ring buffer is full, a DEBUG message is dropped and
+     * the drop is reported with the next printed round. Messages of the other
+     * levels are printed with their round, so they are put into the overflow
+     * queue instead, marked with the number of messages added to the ring buffer
+     * before them.
      *
      * @param message the message to add to the current round.
      */
-    public synchronized void addMessage(String message, Level level) {
-        roundToMessagesMap.computeIfAbsent(currentRound, k -> Collections.synchronizedList(new ArrayList<>()))
-                .add(new LogMessage(message, level));
+    public void addMessage(String message, Level level) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        LogMessage entry = new LogMessage(currentRound, message, level);
+        if (!buffer.offer(entry)) {
+            if (level == Level.DEBUG) {
+                dropped.incrementAndGet();
+            } else {
+                entry.bufferPosition = buffer.getAddedCount();
+                overflowed.incrementAndGet();
+                overflow.add(entry);
+                LockSupport.unpark(writer);
+            }
+        }
+        if (waiting) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Adds a message to the current round. The text is only built if the level is
+     * enabled.
+     *
+     * @param message the supplier of the message
+     * @param level   the level of the message
+     */
+    public void addMessage(Supplier<String> message, Level level) {
+        if (isEnabled(level)) {
+            addMessage(message.get(), level);
+        }
+    }
+
+    /**
+     * Adds a message formatted with one argument to the current round. The text is
+     * only formatted if the level is enabled.
+     *
+     * @param level  the level of the message
+     * @param format the format of the message
+     * @param arg    the argument of the format
+     */
+    public void addMessage(Level level, String format, Object arg) {
+        if (isEnabled(level)) {
+            addMessage(format.formatted(arg), level);
+        }
+    }
+
+    /**
+     * Adds a message formatted with two arguments to the current round. The text is
+     * only formatted if the level is enabled.
+     *
+     * @param level  the level of the message
+     * @param format the format of the message
+     * @param arg1   the first argument of the format
+     * @param arg2   the second argument of the format
+     */
+    public void addMessage(Level level, String format, Object arg1, Object arg2) {
+        if (isEnabled(level)) {
+            addMessage(format.formatted(arg1, arg2), level);
+        }
     }
 
     /**
@@ -54,8 +307,16 @@ public class Log {
      * @param round the round for which to get all messages.
      * @return a synchronized list of all messages for the specified round.
      */
-    public synchronized List<LogMessage> getMessages(int round) {
-        return roundToMessagesMap.getOrDefault(round, new ArrayList<>());
+    public List<LogMessage> getMessages(int round) {
+        flush();
+        List<LogMessage> messages = roundToMessagesMap.get(round);
+        if (messages != null) {
+            return messages;
+        }
+        if (round < spilledRounds) {
+            return readSpilled(round);
+        }
+        return new ArrayList<>();
     }
 
     /**
@@ -63,22 +324,323 @@ public class Log {
      *
      * @param round the round for which to print all messages.
      */
-    public synchronized void printMessagesForRound(int round) {
-        List<String> messages = roundToMessagesMap.getOrDefault(round, new ArrayList<>()).stream().filter(m -> m.getLevel() == Level.INFO).map(LogMessage::getMessage).toList();
+    public void printMessagesForRound(int round) {
+        List<String> messages = getMessages(round).stream().filter(m -> m.getLevel() == Level.INFO).map(LogMessage::getMessage).toList();
         System.out.println("Round " + (round + 1) + ":");
         for (String message : messages) {
             System.out.println("\t" + message);
         }
+        long droppedMessages = dropped.get();
+        if (droppedMessages > droppedReported) {
+            System.out.println("\t" + (droppedMessages - droppedReported) + " log messages were dropped");
+            droppedReported = droppedMessages;
+        }
+    }
+
+    /**
+     * Blocks until the writer thread has filed all messages added before the
+     * call. Returns early if the writer thread has died, in which case the
+     * messages it did not file are missing.
+     */
+    private void flush() {
+        long added = buffer.getAddedCount() + overflowed.get();
+        while (written < added) {
+            if (!writer.isAlive()) {
+                System.err.println("The log writer has stopped, " + (added - written) + " log messages are missing");
+                return;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(this, FLUSH_BACKOFF_NANOS);
+        }
+    }
+
+    /**
+     * Runs the writer thread. It spills the rounds that fell out of the retained
+     * window, drains the ring buffer and the overflow queue in the order the
+     * messages were added and files every message under its round, then parks
+     * until the next message is added or the next round starts.
+     */
+    private void write() {
+        while (true) {
+            spillOldRounds();
+            int drained = buffer.drain(this::fileFromBuffer, BUFFER_CAPACITY);
+            drained += fileOverflow(takenFromBuffer);
+            if (drained > 0) {
+                continue;
+            }
+            waiting = true;
+            if (buffer.isEmpty() && overflow.isEmpty()) {
+                LockSupport.parkNanos(this, 1_000_000);
+            }
+            waiting = false;
+        }
+    }
+
+    /**
+     * Files a message taken from the ring buffer, after the overflowing messages
+     * that were added before it. Only called by the writer thread.
+     *
+     * @param message the message to be filed
+     */
+    private void fileFromBuffer(LogMessage message) {
+        fileOverflow(takenFromBuffer);
+        takenFromBuffer++;
+        file(message);
+        written++;
+    }
+
+    /**
+     * Files the overflowing messages that were added after no more than the given
+     * number of messages of the ring buffer. Only called by the writer thread.
+     *
+     * @param position the number of messages taken from the ring buffer
+     * @return the number of filed messages
+     */
+    private int fileOverflow(long position) {
+        int filed = 0;
+        LogMessage message;
+        while ((message = overflow.peek()) != null && message.bufferPosition <= position) {
+            overflow.poll();
+            file(message);
+            written++;
+            filed++;
+        }
+        return filed;
+    }
+
+    /**
+     * Files a message under its round. Only called by the writer thread.
+     *
+     * @param message the message to be filed
+     */
+    private void file(LogMessage message) {
+        if (message.round < spilledRounds) {
+            /**The round is already on disk, append the late message there*/
+            spill(message.round, List.of(message));
+            return;
+        }
+        roundToMessagesMap.computeIfAbsent(message.round, k -> Collections.synchronizedList(new ArrayList<>())).add(message);
+    }
+
+    /**
+     * Spills the rounds that fell out of the retained window to disk and drops
+     * them from memory. Called by the writer thread at every round boundary, also
+     * while it is busy draining messages.
+     */
+    private void spillOldRounds() {
+        int limit = currentRound - retainedRounds;
+        while (spilledRounds < limit) {
+            int round = spilledRounds;
+            List<LogMessage> messages = roundToMessagesMap.get(round);
+            if (messages != null && !spill(round, messages)) {
+                return;
+            }
+            /**Published before the round leaves the map, so readers always find it in one of them*/
+            spilledRounds = round + 1;
+            roundToMessagesMap.remove(round);
+        }
+    }
+
+    /**
+     * Appends the messages of a round to its spill file and notes their extent in
+     * the file. If the spill file cannot be written, spilling is turned off and
+     * all rounds stay in memory.
+     *
+     * @param round    the round of the messages
+     * @param messages the messages to be spilled
+     * @return true if the messages were written, false otherwise
+     */
+    private boolean spill(int round, List<LogMessage> messages) {
+        synchronized (spillLock) {
+            try {
+                int segment = segmentOf(round);
+                if (segment < spillSegment) {
+                    /**The file of the round was already rotated*/
+                    dropped.addAndGet(messages.size());
+                    return true;
+                }
+                if (segment != spillSegment) {
+                    closeSpillFile();
+                    Files.createDirectories(spillDirectory);
+                    spillChannel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                    spillSegment = segment;
+                }
+                long offset = spillChannel.size();
+                for (LogMessage message : messages) {
+                    byte[] line = (round + "\t" + message.level + "\t" + escape(message.message) + "\n").getBytes(StandardCharsets.UTF_8);
+                    if (spillBuffer.remaining() < line.length) {
+                        writeSpillBuffer();
+                    }
+                    if (line.length > spillBuffer.capacity()) {
+                        ByteBuffer large = ByteBuffer.wrap(line);
+                        while (large.hasRemaining()) {
+                            spillChannel.write(large);
+                        }
+                    } else {
+                        spillBuffer.put(line);
+                    }
+                }
+                writeSpillBuffer();
+                addSpillExtent(round, offset, spillChannel.size() - offset);
+                return true;
+            } catch (IOException e) {
+                System.err.println("Log spilling turned off: " + e);
+                retainedRounds = Integer.MAX_VALUE;
+                return false;
+            }
+        }
+    }
+
+    private void addSpillExtent(int round, long offset, long length) {
+        long[] extents = spillExtents.get(round);
+        if (extents == null) {
+            spillExtents.put(round, new long[]{offset, length});
+        } else {
+            long[] grown = Arrays.copyOf(extents, extents.length + 2);
+            grown[extents.length] = offset;
+            grown[extents.length + 1] = length;
+            spillExtents.put(round, grown);
+        }
+    }
+
+    /**
+     * Writes the buffered lines to the current spill file.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    private void writeSpillBuffer() throws IOException {
+        spillBuffer.flip();
+        while (spillBuffer.hasRemaining()) {
+            spillChannel.write(spillBuffer);
+        }
+        spillBuffer.clear();
+    }
+
+    /**
+     * Closes the current spill file and compresses it if the files are rotated.
+     * The extents of the rounds of a compressed file are dropped, as it can only
+     * be read from the start.
+     *
+     * @throws IOException if the file cannot be closed or compressed
+     */
+    private void closeSpillFile() throws IOException {
+        if (spillChannel == null) {
+            return;
+        }
+        spillChannel.close();
+        spillChannel = null;
+        if (rotationRounds > 0) {
+            Path plain = segmentPath(spillSegment);
+            Path compressed = compressedPath(spillSegment);
+            try (InputStream in = Files.newInputStream(plain);
+                 OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressed))) {
+                in.transferTo(out);
+            }
+            Files.delete(plain);
+            int first = spillSegment * rotationRounds;
+            for (int round = first; round < first + rotationRounds; round++) {
+                spillExtents.remove(round);
+            }
+        }
+    }
+
+    /**
+     * Reads the messages of a spilled round back from disk. The extents of the
+     * round are read directly from a plain spill file, while a compressed file is
+     * scanned for the lines of the round.
+     *
+     * @param round the spilled round
+     * @return the messages of the round
+     */
+    private List<LogMessage> readSpilled(int round) {
+        List<LogMessage> messages = new ArrayList<>();
+        String prefix = round + "\t";
+        synchronized (spillLock) {
+            int segment = segmentOf(round);
+            Path plain = segmentPath(segment);
+            Path compressed = compressedPath(segment);
+            try {
+                if (Files.exists(plain)) {
+                    long[] extents = spillExtents.get(round);
+                    if (extents == null) {
+                        return messages;
+                    }
+                    try (FileChannel channel = FileChannel.open(plain, StandardOpenOption.READ)) {
+                        for (int i = 0; i < extents.length; i += 2) {
+                            ByteBuffer bytes = ByteBuffer.allocate(Math.toIntExact(extents[i + 1]));
+                            int read;
+                            do {
+                                read = channel.read(bytes, extents[i] + bytes.position());
+                            } while (read >= 0 && bytes.hasRemaining());
+                            for (String line : new String(bytes.array(), 0, bytes.position(), StandardCharsets.UTF_8).split("\n")) {
+                                if (line.startsWith(prefix)) {
+                                    messages.add(parseSpilled(round, line));
+                                }
+                            }
+                        }
+                    }
+                } else if (Files.exists(compressed)) {
+                    InputStream in = new GZIPInputStream(Files.newInputStream(compressed));
+                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            if (line.startsWith(prefix)) {
+                                messages.add(parseSpilled(round, line));
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Could not read the log of round " + (round + 1) + ": " + e);
+            }
+        }
+        return messages;
+    }
+
+    private static LogMessage parseSpilled(int round, String line) {
+        String[] fields = line.split("\t", 3);
+        return new LogMessage(round, unescape(fields[2]), Level.valueOf(fields[1]));
+    }
+
+    private int segmentOf(int round) {
+        return rotationRounds > 0 ? round / rotationRounds : 0;
+    }
+
+    private Path segmentPath(int segment) {
+        return spillDirectory.resolve(rotationRounds > 0 ? "log-" + segment + ".txt" : "log.txt");
+    }
+
+    private Path compressedPath(int segment) {
+        return spillDirectory.resolve("log-" + segment + ".txt.gz");
+    }
+
+    private static String escape(String message) {
+        return message.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static String unescape(String message) {
+        StringBuilder builder = new StringBuilder(message.length());
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '\\' && i + 1 < message.length()) {
+                char next = message.charAt(++i);
+                builder.append(next == 'n' ? '\n' : next);
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
     }
 
     /**
-     * Prints all messages for all rounds.
+     * The Level enum represents the severity of a message, from the least severe
+     * DEBUG to the most severe ERROR.
      */
     public enum Level {
-        INFO(0),
-        WARNING(1),
-        ERROR(2),
-        DEBUG(3);
+        DEBUG(0),
+        INFO(1),
+        WARNING(2),
+        ERROR(3);
 
         private final int level;
 
@@ -98,11 +660,18 @@ public class Log {
         private static final Log instance = new Log();
     }
 
-    private class LogMessage {
+    private static class LogMessage {
+        private final int round;
         private final String message;
         private final Level level;
+        /**
+         * The number of messages added to the ring buffer before this one, if it
+         * was put into the overflow queue.
+         */
+        private long bufferPosition;
 
-        private LogMessage(String message, Level level) {
+        private LogMessage(int round, String message, Level level) {
+            this.round = round;
             this.message = message;
             this.level = level;
         }
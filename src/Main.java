@@ -1,4 +1,11 @@
+import java.lang.reflect.Method;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 
 /**
@@ -34,6 +41,64 @@ public class Main {
      * The file path of the players JSON file.
      */
     static String playersFilePath = "./players.json";
+    /**
+     * The number of threads used by the market to match the order books in
+     * parallel. With one thread the orders are matched on the market thread.
+     */
+    static int matchingThreads = Runtime.getRuntime().availableProcessors();
+    /**
+     * The mode used by the market to match the orders.
+     */
+    static Market.ClearingMode clearingMode = Market.ClearingMode.CONTINUOUS;
+    /**
+     * How long the orders of the players rest in the market before they expire.
+     */
+    static Order.TimeInForce orderTimeInForce = Order.TimeInForce.goodForRound();
+    /**
+     * The kind of threads the players run on. On virtual threads a player waiting
+     * for the round or for its orders does not hold a platform thread, so very
+     * large numbers of players can be run. The players are spread over tiers of
+     * the round barrier, so their number is not bound by the parties of a single
+     * phaser. In the pool mode the turns of the players are tasks of a
+     * work-stealing pool sized to the processors.
+     */
+    static PlayerThreads playerThreads = PlayerThreads.PLATFORM;
+    /**
+     * The pool running the turns of the players in the pool mode.
+     */
+    static ForkJoinPool playerPool;
+    /**
+     * Whether the order and trade path runs without allocating. Orders are
+     * recycled once the player, the order book and the expiry wheel released
+     * them, and the text of trade messages is not built. The orders are matched
+     * on the market thread, as handing the order books to the matching pool
+     * allocates its tasks.
+     */
+    static boolean allocationFree = false;
+    /**
+     * The minimum level of the log messages that are kept.
+     */
+    static Log.Level logLevel = Log.Level.INFO;
+    /**
+     * The number of recent rounds whose log messages are kept in memory. Older
+     * rounds are spilled to files in the log directory.
+     */
+    static int logRetainedRounds = Integer.MAX_VALUE;
+    /**
+     * The directory the log messages of older rounds are spilled to.
+     */
+    static String logDirectory = "./logs";
+    /**
+     * The number of rounds per spill file, after which the file is compressed
+     * with gzip, or 0 to spill into one file.
+     */
+    static int logRotationRounds = 0;
+    /**
+     * The number of recent rounds whose statistics the histories of the market
+     * and the players keep per round. Older rounds only count towards the totals.
+     * The orders are priced by the previous round, so a small window suffices.
+     */
+    static int historyRetainedRounds = 16;
     /**
      * The current round number.
      */
@@ -79,17 +144,32 @@ public class Main {
         /**
          * Starts the market thread
          */
+        Market.getInstance().setMatchingThreads(allocationFree ? 1 : matchingThreads);
+        Market.getInstance().setClearingMode(clearingMode);
+        Log.getInstance().setTradeTextEnabled(!allocationFree);
+        Log.getInstance().setMinimumLevel(logLevel);
+        if (logRetainedRounds != Integer.MAX_VALUE) {
+            Log.getInstance().setRetention(logRetainedRounds, Path.of(logDirectory), logRotationRounds);
+        }
         Thread marketThread = new Thread(Market.getInstance(), "MarketThread");
         marketThread.start();
         threads.add(marketThread);
 
         /**
-         * Starts the player thread
+         * Starts the player thread, or creates the players whose turns run on the player pool
          */
-        for (Player.Controller playerController : Player.Controller.getPlayersControllers()) {
-            Thread playerControllerThread = new Thread(playerController, "PlayerThread: " + playerController.getName());
-            playerControllerThread.start();
-            threads.add(playerControllerThread);
+        if (playerThreads == PlayerThreads.POOL) {
+            playerPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            for (Player.Controller playerController : Player.Controller.getPlayersControllers()) {
+                playerController.createPlayer();
+                Synchronizer.notifyPlayerLoaded();
+            }
+        } else {
+            for (Player.Controller playerController : Player.Controller.getPlayersControllers()) {
+                Thread playerControllerThread = newPlayerThread(playerController, "PlayerThread: " + playerController.getName());
+                playerControllerThread.start();
+                threads.add(playerControllerThread);
+            }
         }
 
         /**
@@ -108,23 +188,37 @@ public class Main {
             /**
              * Notify all players that a new round has started
              */
-            Synchronizer.setRoundStarted(Player.getNumberOfActivePlayers());
+            Synchronizer.setRoundStarted();
+            if (playerPool != null) {
+                playRoundOnPool();
+            }
 
             /**
              * Wait for all players to finish their turn
              */
             Synchronizer.waitForPlayers();
+            Market.getInstance().setPlayersFinishedRound();
 
             /**
              * Wait for Market to finish this round
              */
             Synchronizer.waitForMarket();
 
-            //TODO: ????
-            /*
-             * Clear the market
+            /**
+             * Record the fills of this round in the histories
+             */
+            Market.getInstance().recordFills(currentRound);
+
+            /**
+             * Expire the orders whose time in force ends with this round
+             */
+            Market.getInstance().expireOrders(currentRound);
+
+            /**
+             * Freeze the statistics of this round, which price the orders of the next round
              */
-            //Market.getInstance().clearOrders();
+            Market.getInstance().getHistory().publishSnapshot(currentRound);
+            Player.publishRoundSnapshots(currentRound);
 
             /**
              * Print round's log
@@ -136,7 +230,6 @@ public class Main {
              * All players finished their turn, end set the round as finished
              */
             Log.getInstance().setRound(++currentRound);
-            Synchronizer.setRoundFinished();
         }
         // print summary of all transactions
         Market.getInstance().getHistory().printSummary();
@@ -153,6 +246,9 @@ public class Main {
          */
         for (Thread thread : threads)
             thread.interrupt();
+        if (playerPool != null) {
+            playerPool.shutdownNow();
+        }
         System.out.println("Game closed");
         System.exit(0);
     }
@@ -160,4 +256,63 @@ public class Main {
     public static int getRound() {
         return currentRound;
     }
+
+    /**
+     * Plays the turns of all active players as tasks on the player pool and waits
+     * until all of them are finished. A player whose turn fails leaves the game.
+     *
+     * @throws InterruptedException if the main thread is interrupted while waiting
+     */
+    private static void playRoundOnPool() throws InterruptedException {
+        List<Player> players = Player.getActivePlayers();
+        List<Callable<Void>> turns = new ArrayList<>(players.size());
+        for (Player player : players) {
+            turns.add(() -> {
+                player.playRound();
+                return null;
+            });
+        }
+        List<Future<Void>> results = playerPool.invokeAll(turns);
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                results.get(i).get();
+            } catch (ExecutionException e) {
+                Player player = players.get(i);
+                player.log(Log.Level.WARNING, "Player %s left before the game finished", player.getName());
+                Player.removePlayer(player);
+            }
+        }
+    }
+
+    /**
+     * Creates an unstarted thread for a player. Virtual threads are created
+     * reflectively, so the game still runs on Java versions without them, in which
+     * case the players fall back to platform threads.
+     *
+     * @param runnable the player controller to run
+     * @param name     the name of the thread
+     * @return the unstarted thread
+     */
+    private static Thread newPlayerThread(Runnable runnable, String name) {
+        if (playerThreads == PlayerThreads.VIRTUAL) {
+            try {
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Method named = builderClass.getMethod("name", String.class);
+                Method unstarted = builderClass.getMethod("unstarted", Runnable.class);
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                return (Thread) unstarted.invoke(named.invoke(builder, name), runnable);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads are not supported, players run on platform threads");
+                playerThreads = PlayerThreads.PLATFORM;
+            }
+        }
+        return new Thread(runnable, name);
+    }
+
+    /**
+     * The PlayerThreads enum represents the kinds of threads the players can run on.
+     */
+    enum PlayerThreads {
+        PLATFORM, VIRTUAL, POOL
+    }
 }
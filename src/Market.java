@@ -1,44 +1,133 @@
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 /**
  * The Market class is responsible for managing buy and sell orders for various
- * products. It is implemented as a singleton and uses a HashMap to store the
- * buy and sell orders. The Market class is also Runnable and runs in a separate
- * thread. The class has methods to add buy and sell orders and a private method
- * to set the new order flag. There is also a method to check if there are any
- * new orders and a matchOrders method to match the buy and sell orders. The run
- * method waits for the game to start and then waits for new orders to be added
- * to the market. Once new orders are added, the matchOrders method is called to
- * match the buy and sell orders. If there are no new orders, the market is set
- * as finished and the thread exits.
+ * products. It is implemented as a singleton and keeps one price-time-priority
+ * OrderBook per product. Each order book is guarded by its own lock, so the
+ * products can be matched in parallel on a pool of matching threads. The Market
+ * class is also Runnable and runs in a separate thread. Players submit their
+ * orders through a lock-free ring buffer and never wait for the market thread.
+ * The market thread drains the submitted orders in batches, adds them to the
+ * order books, marks those order books as dirty and then matches only the dirty
+ * order books. The run method waits for the game to start and then waits for
+ * orders to be submitted, parking while there are none. Once all players
+ * finished their turn, the main thread calls setPlayersFinishedRound. The
+ * market then drains and matches the orders submitted before, and when no order
+ * is left it sets the round as finished and waits for the next round. The
+ * thread runs until the game is finished. In call auction mode the orders are
+ * not matched when they arrive. Instead, once all players finished their turn,
+ * every dirty order book is cleared at a single price for the whole round.
+ * Orders that are not good till cancelled are put into a timing wheel of expiry
+ * buckets, so at the end of a round only the orders expiring in that round are
+ * visited.
  */
 public class Market implements Runnable {
     /**
-     * The buyOrders map stores the catalog products and their corresponding sorted
-     * set of buy orders.
+     * The number of buckets of the expiry wheel. Orders expiring more rounds ahead
+     * stay in their bucket until the wheel has turned far enough.
      */
-    private final Map<CatalogProduct, SortedSet<Order>> buyOrders;
+    private static final int EXPIRY_WHEEL_SIZE = 64;
     /**
-     * The sellOrders map stores the catalog products and their corresponding sorted
-     * set of sell orders.
+     * The capacity of the ring buffer for submitted orders. Players spin when it
+     * is full until the market thread has drained it.
      */
-    private final Map<CatalogProduct, SortedSet<Order>> sellOrders;
+    private static final int ORDER_QUEUE_CAPACITY = 1 << 14;
+    /**
+     * The orderBooks map stores the catalog products and their corresponding order
+     * book.
+     */
+    private final Map<CatalogProduct, OrderBook> orderBooks;
+    /**
+     * The matchingPool matches the order books in parallel. It is null if the
+     * orders are matched on the market thread.
+     */
+    private ExecutorService matchingPool;
     private final History history;
     /**
-     * The newOrders boolean represents whether new orders have been added to the
-     * market.
+     * The prices the products were traded at in every round.
+     */
+    private final PriceSeries priceSeries;
+    /**
+     * The submittedOrders ring buffer stores the orders submitted by the players
+     * until the market thread adds them to the order books.
      */
-    private boolean newOrders;
-    private double money;
+    private final MpscRingBuffer<Order> submittedOrders;
+    /**
+     * The dirtyBooks list stores the order books that received orders since they
+     * were last matched. A book is only added when it turns dirty. It is only
+     * used by the market thread.
+     */
+    private final List<OrderBook> dirtyBooks;
+    /**
+     * The expiryWheel stores the orders that expire in a round in the bucket of
+     * that round modulo the wheel size. The market thread adds orders while the
+     * players are in their turn, and the main thread expires them once the
+     * market finished the round, so the two never access it at the same time.
+     */
+    private final Queue<Order>[] expiryWheel;
+    /**
+     * The expiredBooks list stores the order books that had orders expire at the
+     * end of the current round. It is only used by the main thread.
+     */
+    private final List<OrderBook> expiredBooks;
+    /**
+     * The actions applied to the submitted orders and the dirty order books, kept
+     * so that no method reference is created per pass.
+     */
+    private final Consumer<Order> addToBook;
+    private final Consumer<OrderBook> matchBook;
+    private final Consumer<OrderBook> clearBook;
+    /**
+     * The clearingMode defines how the orders are matched.
+     */
+    private volatile ClearingMode clearingMode = ClearingMode.CONTINUOUS;
+    /**
+     * The playersFinishedRound boolean represents whether all players finished
+     * their turn, so no more orders are submitted in this round. The market
+     * finishes the round once it has matched all orders submitted before.
+     */
+    private volatile boolean playersFinishedRound;
+    /**
+     * The thread running the market, which is unparked when orders are submitted.
+     */
+    private volatile Thread marketThread;
+    /**
+     * The waiting boolean represents whether the market thread is parked or about
+     * to park, and has to be unparked by the next submitted order.
+     */
+    private volatile boolean waiting;
+    /**
+     * The revenue of the market in cents.
+     */
+    private long money;
 
     /**
-     * The constructor initializes the buyOrders and sellOrders maps as empty
-     * HashMaps.
+     * The constructor initializes the orderBooks map as an empty
+     * ConcurrentHashMap and the ring buffer for submitted orders.
      */
     private Market() {
-        buyOrders = new HashMap<>();
-        sellOrders = new HashMap<>();
-        history = new History();
+        orderBooks = new ConcurrentHashMap<>();
+        submittedOrders = new MpscRingBuffer<>(ORDER_QUEUE_CAPACITY);
+        dirtyBooks = new ArrayList<>();
+        expiryWheel = createExpiryWheel();
+        expiredBooks = new ArrayList<>();
+        addToBook = this::addToOrderBook;
+        matchBook = this::matchOrders;
+        clearBook = this::clearCallAuction;
+        history = new History(true);
+        priceSeries = new PriceSeries();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Queue<Order>[] createExpiryWheel() {
+        Queue<Order>[] wheel = (Queue<Order>[]) new Queue[EXPIRY_WHEEL_SIZE];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        return wheel;
     }
 
     /**
@@ -55,68 +144,220 @@ public class Market implements Runnable {
     }
 
     /**
-     * The addBuyOrder method adds a buy order to the market. If the buyOrders map
-     * does not contain the product, a new sorted set is created and added to the
-     * map. The newOrders boolean is set to true and the thread is notified.
+     * Returns the prices the products were traded at in every round.
+     *
+     * @return the price series of the market
+     */
+    public PriceSeries getPriceSeries() {
+        return priceSeries;
+    }
+
+    /**
+     * Sets the number of threads used to match the order books. With one thread the
+     * orders are matched on the market thread, with more threads every order book
+     * is matched as a separate task on a pool of matching threads.
      *
-     * @param order the buy order to be added
+     * @param threads the number of matching threads
      */
-    public synchronized void addBuyOrder(Order order) {
-        CatalogProduct product = order.getProduct();
-        if (!buyOrders.containsKey(product)) {
-            Comparator<Order> buyOrderComparator = Comparator.comparingDouble(Order::getPriceUnit).reversed();
-            buyOrders.put(product, new TreeSet<>(buyOrderComparator));
+    public void setMatchingThreads(int threads) {
+        if (matchingPool != null) {
+            matchingPool.shutdown();
+            matchingPool = null;
+        }
+        if (threads > 1) {
+            matchingPool = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "MatchingThread");
+                thread.setDaemon(true);
+                return thread;
+            });
         }
-        buyOrders.get(product).add(order);
-        setNewOrders(true);
-        this.notify();
     }
 
     /**
-     * The addSellOrder method adds a sell order to the market. If the sellOrders
-     * map does not contain the product, a new sorted set is created and added to
-     * the map. The newOrders boolean is set to true and the thread is notified.
+     * Sets the mode used to match the orders.
      *
-     * @param order the sell order to be added
+     * @param clearingMode the clearing mode
+     */
+    public void setClearingMode(ClearingMode clearingMode) {
+        this.clearingMode = clearingMode;
+    }
+
+    /**
+     * Notifies the market that all players finished their turn. The market thread
+     * then matches the remaining submitted orders, or clears the call auction of
+     * the round, and sets the market as finished.
      */
-    public synchronized void addSellOrder(Order order) {
-        CatalogProduct product = order.getProduct();
-        if (!sellOrders.containsKey(product)) {
-            Comparator<Order> sellOrderComparator = Comparator.comparingDouble(Order::getPriceUnit);
-            sellOrders.put(product, new TreeSet<>(sellOrderComparator));
+    public void setPlayersFinishedRound() {
+        playersFinishedRound = true;
+        LockSupport.unpark(marketThread);
+    }
+
+    /**
+     * The addOrder method submits a buy or sell order to the market. The order is
+     * put into the ring buffer without taking a lock, and the market thread is
+     * unparked if it is waiting for orders.
+     *
+     * @param order the order to be added
+     */
+    public void addOrder(Order order) {
+        submittedOrders.put(order);
+        if (waiting) {
+            LockSupport.unpark(marketThread);
+        }
+    }
+
+    /**
+     * Adds all submitted orders to the order books of their products and marks
+     * those order books as dirty. If a product has no order book yet, a new one is
+     * created. Only the lock of that order book is held while adding an order.
+     *
+     * @return the number of added orders
+     */
+    private int drainSubmittedOrders() {
+        return submittedOrders.drain(addToBook, submittedOrders.getCapacity());
+    }
+
+    /**
+     * Adds a submitted order to the order book of its product.
+     *
+     * @param order the order to be added
+     */
+    private void addToOrderBook(Order order) {
+        OrderBook book = getOrderBook(order.getProduct());
+        synchronized (book) {
+            if (order.isBuyOrder()) {
+                book.addBuyOrder(order);
+            } else {
+                book.addSellOrder(order);
+            }
+        }
+        scheduleExpiry(order);
+        if (book.markDirty()) {
+            dirtyBooks.add(book);
+        }
+    }
+
+    /**
+     * Parks the market thread until an order is submitted, all players finished
+     * their turn or the timeout elapses.
+     *
+     * @param timeoutMilliseconds the maximum time to wait
+     */
+    private void awaitOrders(int timeoutMilliseconds) {
+        waiting = true;
+        if (submittedOrders.isEmpty() && !playersFinishedRound) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(timeoutMilliseconds));
         }
-        sellOrders.get(product).add(order);
-        setNewOrders(true);
-        this.notify();
+        waiting = false;
     }
 
     /**
-     * The setNewOrders method sets the newOrders boolean to the given value.
+     * Puts the given order into the expiry bucket of its expiry round, unless it
+     * is good till cancelled.
      *
-     * @param b the new value for newOrders
+     * @param order the order to be scheduled
      */
-    private synchronized void setNewOrders(boolean b) {
-        newOrders = b;
+    private void scheduleExpiry(Order order) {
+        if (order.getExpiryRound() != Integer.MAX_VALUE) {
+            expiryWheel[order.getExpiryRound() % EXPIRY_WHEEL_SIZE].add(order);
+        }
+    }
+
+    /**
+     * Expires all open orders whose last round is the given round. Only the
+     * bucket of the round is visited; orders that belong to a later turn of the
+     * wheel are put back. The order books are told how many of their orders
+     * expired, so they can drop them from the top of the book and compact
+     * themselves once expired orders make up most of the book. Every order taken
+     * out of the wheel is released by it.
+     *
+     * @param round the round that has ended
+     */
+    public void expireOrders(int round) {
+        Queue<Order> bucket = expiryWheel[round % EXPIRY_WHEEL_SIZE];
+        int pending = bucket.size();
+        for (int i = 0; i < pending; i++) {
+            Order order = bucket.poll();
+            if (order == null) {
+                break;
+            }
+            if (order.getExpiryRound() > round) {
+                bucket.add(order);
+                continue;
+            }
+            if (!order.isComplete()) {
+                OrderBook book = getOrderBook(order.getProduct());
+                synchronized (book) {
+                    order.expire();
+                    if (book.countExpiredOrder()) {
+                        expiredBooks.add(book);
+                    }
+                }
+            }
+            order.release();
+        }
+        int expired = 0;
+        for (int i = 0; i < expiredBooks.size(); i++) {
+            OrderBook book = expiredBooks.get(i);
+            synchronized (book) {
+                expired += book.applyExpiredOrders();
+            }
+        }
+        expiredBooks.clear();
+        if (Log.getInstance().isEnabled(Log.Level.DEBUG)) {
+            Log.getInstance().addMessage(Log.Level.DEBUG, "Expired %d orders", expired);
+        }
     }
 
     /**
-     * The gotNewOrders method returns the current value of newOrders.
+     * Adds the fills of the given round to the histories of the market and the
+     * players and to the price bars, and closes the price bars of the round.
+     * Must be called once the market finished the round.
      *
-     * @return the current value of newOrders
+     * @param round the round that has ended
+     */
+    public void recordFills(int round) {
+        for (OrderBook book : orderBooks.values()) {
+            synchronized (book) {
+                book.getFills().recordInto(round, book.getProduct(), history, priceSeries);
+            }
+        }
+        priceSeries.closeRound(round);
+    }
+
+    /**
+     * Returns the order book of the given product, creating it if needed.
+     *
+     * @param product the product of the order book
+     * @return the order book of the product
+     */
+    private OrderBook getOrderBook(CatalogProduct product) {
+        return orderBooks.computeIfAbsent(product, OrderBook::new);
+    }
+
+    /**
+     * The gotNewOrders method checks if any order book is dirty.
+     *
+     * @return true if an order book received orders since it was last matched
      */
     private boolean gotNewOrders() {
-        return newOrders;
+        return !dirtyBooks.isEmpty();
     }
 
     /**
      * The run method runs the Market object on a separate thread. It waits for the
-     * game to start and then waits for new orders to be added to the market. If new
-     * orders are added, it matches the orders. If no new orders are added, it sets
-     * the market as finished. If the thread is interrupted, it logs the crash with
-     * a message.
+     * game to start and then waits for new orders to be submitted to the market. If
+     * new orders are submitted, it drains them in one batch and matches the dirty
+     * order books. Once all players finished their turn and the last orders are
+     * matched, the round is quiescent and it sets the market as finished. In call
+     * auction mode it keeps adding the submitted orders to the order books until
+     * all players finished their turn, clears the auction and then sets the market
+     * as finished. If the thread is interrupted, it logs the crash with a message.
      */
     @Override
     public void run() {
+        marketThread = Thread.currentThread();
+
         /**Wait until the game starts*/
         try {
             Synchronizer.waitGameStart();
@@ -127,69 +368,283 @@ public class Market implements Runnable {
 
         /** Play the game*/
         while (!(Synchronizer.gameFinished())) {
-            synchronized (this) {
-                try {
-                    /**wait for a new order to be added*/
-                    // Log.getInstance().addMessage("waiting for orders");
-                    this.wait(100);
-                    if (gotNewOrders()) {
-                        setNewOrders(false);
-                        /**Match the orders */
-                        // Log.getInstance().addMessage("got new orders to match");
-                        matchOrders();
-                    } else {
+            try {
+                if (clearingMode == ClearingMode.CALL_AUCTION) {
+                    /**wait for all players to finish their turn*/
+                    if (drainSubmittedOrders() == 0 && !playersFinishedRound) {
+                        awaitOrders(100);
+                    }
+                    if (playersFinishedRound) {
+                        playersFinishedRound = false;
+                        /**All orders of the round were submitted before the request*/
+                        drainSubmittedOrders();
+                        clearCallAuction();
                         Synchronizer.setMarketFinished();
                     }
-                } catch (InterruptedException e) {
-                    if (!Synchronizer.gameFinished()) {
-                        Log.getInstance().addMessage("Market crashed", Log.Level.ERROR);
-                        e.printStackTrace();
+                    continue;
+                }
+                /**Read the flag before draining, all orders of the round were submitted before it was set*/
+                boolean quiescent = playersFinishedRound;
+                if (drainSubmittedOrders() == 0 && !gotNewOrders()) {
+                    if (quiescent) {
+                        /**All players are done and their last orders are matched*/
+                        playersFinishedRound = false;
+                        Synchronizer.setMarketFinished();
+                    } else {
+                        /**wait for a new order to be added*/
+                        awaitOrders(100);
                     }
+                    continue;
+                }
+                /**Match the orders */
+                // Log.getInstance().addMessage("got new orders to match");
+                matchOrders();
+            } catch (InterruptedException e) {
+                if (!Synchronizer.gameFinished()) {
+                    Log.getInstance().addMessage("Market crashed", Log.Level.ERROR);
+                    e.printStackTrace();
                 }
             }
-
         }
     }
 
     /**
-     * Matches the buy and sell orders for each product in the market. The method
-     * iterates over all the products in the catalog, retrieves their corresponding
-     * buy and sell orders, and matches them based on the price unit. If there are
-     * no buy or sell orders for a product, the method returns without matching
-     * orders for that product. If there is a match between a buy and sell order for
-     * a product, a trade is executed with the minimum quantity between the buy and
-     * sell orders. The buy and sell orders are then updated and removed from their
-     * respective sets if they are complete.
+     * Matches the buy and sell orders of the dirty order books. The method takes
+     * every order book out of the dirty set before matching it, so orders added
+     * while matching mark the book dirty again for the next pass. The best orders
+     * of a book are matched as long as the book is crossed. Orders at the
+     * same price are matched in the order they arrived. If there is a match
+     * between a buy and sell order for a product, a trade is executed with the
+     * minimum quantity between the buy and sell orders. The buy and sell orders
+     * are then updated and removed from the book if they are complete.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting for
+     *                              the matching tasks
      */
-    private void matchOrders() {
-        for (CatalogProduct product : CatalogProduct.getCatalog()) {
-            SortedSet<Order> buySet = buyOrders.get(product);
-            SortedSet<Order> sellSet = sellOrders.get(product);
-            if (buySet == null || sellSet == null) {
-                /**no buy or sell orders for this product*/
-                return;
+    private void matchOrders() throws InterruptedException {
+        forEachDirtyBook(matchBook);
+    }
+
+    /**
+     * Clears the call auction of every dirty order book.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting for
+     *                              the clearing tasks
+     */
+    private void clearCallAuction() throws InterruptedException {
+        forEachDirtyBook(clearBook);
+    }
+
+    /**
+     * Takes all order books out of the dirty set and applies the given action to
+     * them. If a matching pool is set and more than one order book is dirty, every
+     * order book is handled as a separate task and the method returns once all of
+     * them are done.
+     *
+     * @param action the action applied to every dirty order book
+     * @throws InterruptedException if the thread is interrupted while waiting for
+     *                              the tasks
+     */
+    private void forEachDirtyBook(Consumer<OrderBook> action) throws InterruptedException {
+        if (matchingPool == null || dirtyBooks.size() == 1) {
+            /**Indexed loop, so matching on the market thread allocates no iterator*/
+            for (int i = 0; i < dirtyBooks.size(); i++) {
+                OrderBook book = dirtyBooks.get(i);
+                book.markClean();
+                action.accept(book);
+            }
+            dirtyBooks.clear();
+            return;
+        }
+        List<Callable<Void>> tasks = new ArrayList<>(dirtyBooks.size());
+        for (OrderBook book : dirtyBooks) {
+            book.markClean();
+            tasks.add(() -> {
+                action.accept(book);
+                return null;
+            });
+        }
+        dirtyBooks.clear();
+        for (Future<Void> future : matchingPool.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Log.getInstance().addMessage("Matching failed: " + e.getCause(), Log.Level.ERROR);
             }
-            while (!buySet.isEmpty() && !sellSet.isEmpty() && buySet.first().getPriceUnit() >= sellSet.first().getPriceUnit()) {
+        }
+    }
+
+    /**
+     * Matches the buy and sell orders of a single order book while holding its
+     * lock. Every fill is recorded in the fill log of the book, and the text of
+     * the trade message is only built if the log wants it.
+     *
+     * @param book the order book to be matched
+     */
+    private void matchOrders(OrderBook book) {
+        CatalogProduct product = book.getProduct();
+        synchronized (book) {
+            while (book.isCrossed()) {
                 /** execute a trade*/
-                Order buyOrder = buySet.first();
-                Order sellOrder = sellSet.first();
+                Order buyOrder = book.getBestBuyOrder();
+                Order sellOrder = book.getBestSellOrder();
                 int quantity = Math.min(buyOrder.getQuantity(), sellOrder.getQuantity());
                 buyOrder.execute(sellOrder.getIssuer(), quantity);
                 sellOrder.execute(buyOrder.getIssuer(), quantity);
-                double marketRevenue = Math.floor(quantity * Math.abs(sellOrder.getPriceUnit() - buyOrder.getPriceUnit()) * 100) / 100.0;
+                book.getFills().record(buyOrder, quantity, buyOrder.getPriceUnit());
+                book.getFills().record(sellOrder, quantity, sellOrder.getPriceUnit());
+                long marketRevenue = quantity * Math.abs(sellOrder.getPriceUnit() - buyOrder.getPriceUnit());
                 marketRevenue(marketRevenue);
-                Log.getInstance().addMessage("Trade executed: " + quantity + " " + product.getName() + " from " + sellOrder.getIssuer().getName() + " to " + buyOrder.getIssuer().getName() + ". Market revenue: " + marketRevenue, Log.Level.INFO);
+                if (Log.getInstance().isEnabled(Log.Level.INFO) && Log.getInstance().isTradeTextEnabled()) {
+                    Log.getInstance().addMessage("Trade executed: " + quantity + " " + product.getName() + " from " + sellOrder.getIssuer().getName() + " to " + buyOrder.getIssuer().getName() + ". Market revenue: " + Money.format(marketRevenue), Log.Level.INFO);
+                }
                 if (buyOrder.isComplete()) {
-                    buySet.remove(buyOrder);
+                    book.removeBestBuyOrder();
                 }
                 if (sellOrder.isComplete()) {
-                    sellSet.remove(sellOrder);
+                    book.removeBestSellOrder();
+                }
+            }
+        }
+    }
+
+    /**
+     * Clears the call auction of a single order book while holding its lock. The
+     * demand is aggregated from the highest buy price downwards and the supply
+     * from the lowest sell price upwards, both only over the crossed price range.
+     * The clearing price is the price with the highest traded volume, ties are
+     * broken by the lowest surplus and then by the middle of the remaining range.
+     * All orders are settled at the clearing price in price-time priority, and
+     * the orders at the last filled price level share the rest pro rata. The
+     * curves and the shares are computed in arrays kept on the book.
+     *
+     * @param book the order book to be cleared
+     */
+    private void clearCallAuction(OrderBook book) {
+        synchronized (book) {
+            if (!book.isCrossed()) {
+                return;
+            }
+            int lowestTick = book.getBestSellTick();
+            int highestTick = book.getBestBuyTick();
+            int levels = highestTick - lowestTick + 1;
+
+            /**Aggregate the demand and supply curves*/
+            long[] demand = book.getDemandCurve(levels);
+            long[] supply = book.getSupplyCurve(levels);
+            long cumulative = 0;
+            for (int i = levels - 1; i >= 0; i--) {
+                cumulative += getQuantity(book.getBuyOrdersAt(lowestTick + i));
+                demand[i] = cumulative;
+            }
+            cumulative = 0;
+            for (int i = 0; i < levels; i++) {
+                cumulative += getQuantity(book.getSellOrdersAt(lowestTick + i));
+                supply[i] = cumulative;
+            }
+
+            /**Find the price with the highest volume and the lowest surplus*/
+            long bestVolume = -1;
+            long bestSurplus = Long.MAX_VALUE;
+            int first = 0;
+            int last = 0;
+            for (int i = 0; i < levels; i++) {
+                long volume = Math.min(demand[i], supply[i]);
+                long surplus = Math.abs(demand[i] - supply[i]);
+                if (volume > bestVolume || (volume == bestVolume && surplus < bestSurplus)) {
+                    bestVolume = volume;
+                    bestSurplus = surplus;
+                    first = i;
+                    last = i;
+                } else if (volume == bestVolume && surplus == bestSurplus) {
+                    last = i;
+                }
+            }
+            int clearingTick = lowestTick + (first + last) / 2;
+            int volume = (int) Math.min(demand[clearingTick - lowestTick], supply[clearingTick - lowestTick]);
+            long clearingPrice = clearingTick;
+
+            /**Settle the orders in price-time priority*/
+            int remaining = volume;
+            for (int tick = highestTick; tick >= clearingTick && remaining > 0; tick--) {
+                remaining -= settle(book.getBuyOrdersAt(tick), remaining, clearingPrice, book);
+            }
+            remaining = volume;
+            for (int tick = lowestTick; tick <= clearingTick && remaining > 0; tick++) {
+                remaining -= settle(book.getSellOrdersAt(tick), remaining, clearingPrice, book);
+            }
+            book.removeCompleteOrders();
+            if (Log.getInstance().isEnabled(Log.Level.INFO) && Log.getInstance().isTradeTextEnabled()) {
+                Log.getInstance().addMessage("Call auction cleared: " + volume + " " + book.getProduct().getName() + " at " + Money.format(clearingPrice), Log.Level.INFO);
+            }
+        }
+    }
+
+    /**
+     * Settles the orders of a price level at the clearing price. If the level
+     * holds more than the remaining volume, every order gets its pro rata share
+     * and the units left by rounding down are given one by one in arrival order.
+     *
+     * @param orders        the orders of the price level
+     * @param remaining     the volume left to be settled
+     * @param clearingPrice the clearing price of the auction in cents
+     * @param book          the order book of the orders
+     * @return the settled quantity
+     */
+    private int settle(Collection<Order> orders, int remaining, long clearingPrice, OrderBook book) {
+        FillLog fills = book.getFills();
+        long levelQuantity = getQuantity(orders);
+        if (levelQuantity <= remaining) {
+            for (Order order : orders) {
+                if (order.getQuantity() > 0 && !order.isExpired()) {
+                    fills.record(order, order.getQuantity(), clearingPrice);
+                    order.executeAtClearingPrice(order.getQuantity(), clearingPrice);
                 }
             }
+            return (int) levelQuantity;
+        }
+        int[] shares = book.getAuctionShares(orders.size());
+        int allocated = 0;
+        int i = 0;
+        for (Order order : orders) {
+            if (!order.isExpired()) {
+                shares[i] = (int) (order.getQuantity() * (long) remaining / levelQuantity);
+                allocated += shares[i];
+            }
+            i++;
+        }
+        i = 0;
+        for (Order order : orders) {
+            if (allocated < remaining && shares[i] < order.getQuantity() && !order.isExpired()) {
+                shares[i]++;
+                allocated++;
+            }
+            if (shares[i] > 0) {
+                fills.record(order, shares[i], clearingPrice);
+                order.executeAtClearingPrice(shares[i], clearingPrice);
+            }
+            i++;
+        }
+        return remaining;
+    }
+
+    /**
+     * Returns the total open quantity of the given orders.
+     *
+     * @param orders the orders
+     * @return the total open quantity
+     */
+    private static long getQuantity(Collection<Order> orders) {
+        long quantity = 0;
+        for (Order order : orders) {
+            if (!order.isExpired()) {
+                quantity += order.getQuantity();
+            }
         }
+        return quantity;
     }
 
-    private void marketRevenue(double v) {
+    private synchronized void marketRevenue(long v) {
         this.money += v;
     }
 
@@ -197,8 +652,21 @@ public class Market implements Runnable {
      * The clearOrders method clears all buy and sell orders of the run.
      */
     public void clearOrders() {
-        this.buyOrders.clear();
-        this.sellOrders.clear();
+        this.orderBooks.clear();
+        for (Queue<Order> bucket : expiryWheel) {
+            bucket.clear();
+        }
+    }
+
+    /**
+     * The ClearingMode enum represents how the market matches the orders.
+     * <p>
+     * CONTINUOUS matches crossing orders pairwise as soon as they arrive.
+     * CALL_AUCTION collects the orders of a round and clears every product once
+     * at a single price after all players finished their turn.
+     */
+    public enum ClearingMode {
+        CONTINUOUS, CALL_AUCTION
     }
 
     /**
@@ -0,0 +1,51 @@
+/**
+ * The Money class converts between amounts of money and the fixed-point cents
+ * used throughout the game. Prices, balances and revenues are stored as long
+ * cents, so they are compared and summed exactly and do not drift over long
+ * runs.
+ */
+public final class Money {
+    /**
+     * The number of cents in one unit of money.
+     */
+    public static final int CENTS_PER_UNIT = 100;
+
+    private Money() {
+    }
+
+    /**
+     * Converts an amount of money to cents, rounding to the nearest cent.
+     *
+     * @param amount the amount of money
+     * @return the amount in cents
+     */
+    public static long toCents(double amount) {
+        return Math.round(amount * CENTS_PER_UNIT);
+    }
+
+    /**
+     * Scales an amount of cents by the given factor, rounding down to whole cents.
+     * A tiny tolerance keeps products like 1000 * 1.15 from falling one cent short
+     * because of the binary representation of the factor.
+     *
+     * @param cents  the amount in cents
+     * @param factor the factor to scale by
+     * @return the scaled amount in cents
+     */
+    public static long scale(long cents, double factor) {
+        return (long) Math.floor(cents * factor + 1e-6);
+    }
+
+    /**
+     * Formats an amount of cents as units with two decimals.
+     *
+     * @param cents the amount in cents
+     * @return the formatted amount
+     */
+    public static String format(long cents) {
+        String sign = cents < 0 ? "-" : "";
+        long absolute = Math.abs(cents);
+        long fraction = absolute % CENTS_PER_UNIT;
+        return sign + absolute / CENTS_PER_UNIT + (fraction < 10 ? ".0" : ".") + fraction;
+    }
+}
@@ -0,0 +1,162 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * The MpscRingBuffer class is a bounded, lock-free queue for many producer
+ * threads and a single consumer thread. Every slot of the ring carries a
+ * sequence number: producers claim a slot by moving the shared tail with a
+ * compare-and-set and publish the element by advancing the slot's sequence, and
+ * the consumer takes elements in order as soon as their slot is published.
+ * Neither side ever takes a lock.
+ *
+ * @param <T> the type of the elements
+ */
+public class MpscRingBuffer<T> {
+    /**
+     * The time a producer parks when the ring buffer stays full.
+     */
+    private static final long FULL_BACKOFF_NANOS = 50_000;
+
+    private final Object[] elements;
+    /**
+     * The sequence of every slot. A slot is free for the producer claiming
+     * position p if its sequence is p, and holds the element of position p once
+     * its sequence is p + 1.
+     */
+    private final AtomicLongArray sequences;
+    private final int mask;
+    /**
+     * The next position to be claimed by a producer.
+     */
+    private final AtomicLong tail;
+    /**
+     * The next position to be taken by the consumer. Only read and written by
+     * the consumer thread.
+     */
+    private long head;
+
+    /**
+     * Constructs an empty ring buffer.
+     *
+     * @param capacity the capacity of the ring buffer, which must be a power of two
+     * @throws IllegalArgumentException if the capacity is not a power of two
+     */
+    public MpscRingBuffer(int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Invalid ring buffer capacity: " + capacity);
+        }
+        this.elements = new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = capacity - 1;
+        this.tail = new AtomicLong();
+        this.head = 0;
+    }
+
+    /**
+     * Adds an element if the ring buffer is not full. Can be called from any
+     * thread.
+     *
+     * @param element the element to be added
+     * @return true if the element was added, false if the ring buffer is full
+     */
+    public boolean offer(T element) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements[index] = element;
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                /**The slot still holds an element of the previous lap*/
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Adds an element, waiting while the ring buffer is full until the consumer
+     * has made room. The producer first spins, then yields and finally parks for
+     * short periods, so it does not take the processor away from the consumer.
+     * Can be called from any thread.
+     *
+     * @param element the element to be added
+     */
+    public void put(T element) {
+        int attempts = 0;
+        while (!offer(element)) {
+            attempts++;
+            if (attempts < 64) {
+                Thread.onSpinWait();
+            } else if (attempts < 128) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(FULL_BACKOFF_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Takes up to the given number of elements in the order they were added and
+     * passes them to the consumer. Must only be called from the consumer thread.
+     *
+     * @param consumer the consumer of the elements
+     * @param limit    the maximum number of elements to take
+     * @return the number of elements taken
+     */
+    @SuppressWarnings("unchecked")
+    public int drain(Consumer<T> consumer, int limit) {
+        int drained = 0;
+        while (drained < limit) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            T element = (T) elements[index];
+            elements[index] = null;
+            sequences.set(index, head + elements.length);
+            head++;
+            drained++;
+            consumer.accept(element);
+        }
+        return drained;
+    }
+
+    /**
+     * Checks if there is no element to be taken. Must only be called from the
+     * consumer thread.
+     *
+     * @return true if the ring buffer is empty, false otherwise
+     */
+    public boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+
+    /**
+     * Returns the number of elements added so far. An element is counted as soon
+     * as its producer has claimed a slot, and it is published right after. Can be
+     * called from any thread.
+     *
+     * @return the number of elements added
+     */
+    public long getAddedCount() {
+        return tail.get();
+    }
+
+    /**
+     * Returns the capacity of the ring buffer.
+     *
+     * @return the capacity of the ring buffer
+     */
+    public int getCapacity() {
+        return elements.length;
+    }
+}
@@ -1,30 +1,92 @@
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * An abstract class representing a generic order to buy or sell a specific
  * product in a market.
+ * <p>
+ * In the allocation-free mode orders are recycled. The issuer, the order book
+ * and the expiry wheel each hold a reference to an order, and once all of them
+ * have released it, the order is put into a pool and placed again by the next
+ * player.
  */
 public abstract class Order {
-    private final Player issuer;
-    private final CountDownLatch completed;
-    private final CatalogProduct product;
+    /**
+     * The maximum number of recycled orders kept per side.
+     */
+    private static final int POOL_CAPACITY = 1 << 12;
+    private static final BlockingQueue<Order> buyOrderPool = new ArrayBlockingQueue<>(POOL_CAPACITY);
+    private static final BlockingQueue<Order> sellOrderPool = new ArrayBlockingQueue<>(POOL_CAPACITY);
+    private static final AtomicIntegerFieldUpdater<Order> REFERENCES = AtomicIntegerFieldUpdater.newUpdater(Order.class, "references");
+
+    private Player issuer;
+    /**
+     * The completion of the order, which is completed once the order is filled or
+     * expires.
+     */
+    private CompletableFuture<Status> completion;
+    private CatalogProduct product;
+    /**
+     * The last round in which the order rests in the market.
+     */
+    private int expiryRound;
+    /**
+     * The quantity of the product the order was placed with.
+     */
+    private int initialQuantity;
     private int quantity;
-    private double priceUnit;
+    /**
+     * The unit price of the order in cents.
+     */
+    private long priceUnit;
+    private volatile boolean expired;
+    /**
+     * The number of holders that have not released the order yet.
+     */
+    private volatile int references;
+
+    private Order() {
+    }
 
     /**
-     * Creates a new order with the given parameters.
+     * Places the order with the given parameters in the market.
      *
-     * @param issuer   the player who issued the order
-     * @param product  the product being bought or sold
-     * @param quantity the quantity of the product to be bought or sold
+     * @param issuer      the player who issued the order
+     * @param product     the product being bought or sold
+     * @param quantity    the quantity of the product to be bought or sold
+     * @param limitPrice  the limit price in cents
+     * @param timeInForce how long the order rests in the market
      */
-    private Order(Player issuer, CatalogProduct product, int quantity, double limitPrice) {
+    private void place(Player issuer, CatalogProduct product, int quantity, long limitPrice, TimeInForce timeInForce) {
         this.issuer = issuer;
         this.product = product;
         this.quantity = quantity;
+        this.initialQuantity = quantity;
         this.priceUnit = calculatePrice(limitPrice);
-        this.completed = new CountDownLatch(1);
+        this.expiryRound = timeInForce.getExpiryRound(Main.getRound());
+        this.expired = false;
+        this.completion = new CompletableFuture<>();
+        this.references = expiryRound == Integer.MAX_VALUE ? 2 : 3;
+        Market.getInstance().addOrder(this);
+        int desiredSell = isBuyOrder() ? 0 : quantity;
+        int desiredBuy = isBuyOrder() ? quantity : 0;
+        issuer.getHistory().addBuySellRecord(Main.getRound(), product, 0, 0, desiredSell, desiredBuy);
+        Market.getInstance().getHistory().addBuySellRecord(Main.getRound(), product, 0, 0, desiredSell, desiredBuy);
+    }
+
+    /**
+     * Creates a new buy order with the given parameters and the default time in
+     * force.
+     *
+     * @param issuer        the player who issued the order
+     * @param product       the product being bought
+     * @param quantityToBuy the quantity of the product to be bought
+     * @return a new buy order
+     */
+    public static Order newBuyOrder(Player issuer, CatalogProduct product, int quantityToBuy, long limitPrice) {
+        return newBuyOrder(issuer, product, quantityToBuy, limitPrice, Main.orderTimeInForce);
     }
 
     /**
@@ -33,10 +95,29 @@ public abstract class Order {
      * @param issuer        the player who issued the order
      * @param product       the product being bought
      * @param quantityToBuy the quantity of the product to be bought
+     * @param timeInForce   how long the order rests in the market
      * @return a new buy order
      */
-    public static Order newBuyOrder(Player issuer, CatalogProduct product, int quantityToBuy, double limitPrice) {
-        return new BuyOrder(issuer, product, quantityToBuy, limitPrice);
+    public static Order newBuyOrder(Player issuer, CatalogProduct product, int quantityToBuy, long limitPrice, TimeInForce timeInForce) {
+        Order order = Main.allocationFree ? buyOrderPool.poll() : null;
+        if (order == null) {
+            order = new BuyOrder();
+        }
+        order.place(issuer, product, quantityToBuy, limitPrice, timeInForce);
+        return order;
+    }
+
+    /**
+     * Creates a new sell order with the given parameters and the default time in
+     * force.
+     *
+     * @param issuer         the player who issued the order
+     * @param product        the product being sold
+     * @param quantityToSell the quantity of the product to be sold
+     * @return a new sell order
+     */
+    public static Order newSellOrder(Player issuer, CatalogProduct product, int quantityToSell, long minSellPrice) {
+        return newSellOrder(issuer, product, quantityToSell, minSellPrice, Main.orderTimeInForce);
     }
 
     /**
@@ -45,10 +126,28 @@ public abstract class Order {
      * @param issuer         the player who issued the order
      * @param product        the product being sold
      * @param quantityToSell the quantity of the product to be sold
+     * @param timeInForce    how long the order rests in the market
      * @return a new sell order
      */
-    public static Order newSellOrder(Player issuer, CatalogProduct product, int quantityToSell, double minSellPrice) {
-        return new SellOrder(issuer, product, quantityToSell, minSellPrice);
+    public static Order newSellOrder(Player issuer, CatalogProduct product, int quantityToSell, long minSellPrice, TimeInForce timeInForce) {
+        Order order = Main.allocationFree ? sellOrderPool.poll() : null;
+        if (order == null) {
+            order = new SellOrder();
+        }
+        order.place(issuer, product, quantityToSell, minSellPrice, timeInForce);
+        return order;
+    }
+
+    /**
+     * Releases one reference to the order. The issuer releases the order once it
+     * no longer uses it, the market once the order has left the order book and the
+     * expiry wheel. In the allocation-free mode the order is recycled after the
+     * last release, so it must not be used by the releasing holder afterwards.
+     */
+    public void release() {
+        if (REFERENCES.decrementAndGet(this) == 0 && Main.allocationFree) {
+            (isBuyOrder() ? buyOrderPool : sellOrderPool).offer(this);
+        }
     }
 
     /**
@@ -57,24 +156,106 @@ public abstract class Order {
      *
      * @return the unit price of the product
      */
-    protected abstract double calculatePrice(double limitPrice);
+    protected abstract long calculatePrice(long limitPrice);
+
+    /**
+     * Returns the price the order is priced around, the recommended price of the
+     * product. The average prices of the previous round are only exposed by the
+     * price series of the market: sell prices are never above the anchor, so
+     * anchoring on them would let the prices drift down round after round.
+     *
+     * @return the anchor price in cents
+     */
+    protected long anchorPrice() {
+        return getProduct().getRecommendedPrice();
+    }
 
 
     /**
-     * Executes the order with the given partner and quantity.
+     * Executes the order with the given partner and quantity at the unit price of
+     * the order.
      *
      * @param partner  the partner who executes the order
      * @param quantity the quantity of the product to be bought or sold
      */
-    public abstract void execute(Player partner, int quantity);
+    public void execute(Player partner, int quantity) {
+        execute(quantity, getPriceUnit(), partner);
+    }
 
     /**
-     * Decrements the count of the completed latch.
+     * Executes the given quantity of the order at the clearing price of a call
+     * auction. The market is the counterparty of all orders of the auction.
+     *
+     * @param quantity      the quantity of the product to be bought or sold
+     * @param clearingPrice the unit price in cents all orders of the auction are
+     *                      settled at
+     */
+    public void executeAtClearingPrice(int quantity, long clearingPrice) {
+        execute(quantity, clearingPrice, null);
+    }
+
+    /**
+     * Executes the given quantity of the order at the given unit price. The fill
+     * is recorded in the histories by the market at the end of the round.
+     *
+     * @param quantity     the quantity of the product to be bought or sold
+     * @param priceUnit    the unit price in cents the quantity is settled at
+     * @param counterparty the counterparty, or null for the call auction
+     */
+    protected abstract void execute(int quantity, long priceUnit, Player counterparty);
+
+    /**
+     * Describes the counterparty of a fill for the log.
+     *
+     * @param counterparty the counterparty, or null for the call auction
+     * @return the description of the counterparty
+     */
+    private static String describe(Player counterparty) {
+        return counterparty == null ? "the call auction" : counterparty.getType() + " " + counterparty.getName();
+    }
+
+    /**
+     * Completes the order as filled.
      */
     void finish() {
-        this.completed.countDown();
+        this.completion.complete(Status.FILLED);
     }
 
+    /**
+     * Marks the order as expired. An expired order is no longer matched and is
+     * removed from its order book. The order is completed as partially filled if
+     * some of its quantity was traded, or as expired otherwise.
+     */
+    void expire() {
+        this.expired = true;
+        this.completion.complete(quantity < initialQuantity ? Status.PARTIALLY_FILLED : Status.EXPIRED);
+    }
+
+    /**
+     * Returns true if the order has expired, false otherwise.
+     *
+     * @return true if the order has expired, false otherwise
+     */
+    public boolean isExpired() {
+        return expired;
+    }
+
+    /**
+     * Returns the last round in which the order rests in the market.
+     *
+     * @return the expiry round, or Integer.MAX_VALUE if the order never expires
+     */
+    public int getExpiryRound() {
+        return expiryRound;
+    }
+
+    /**
+     * Returns true if this is a buy order, false if it is a sell order.
+     *
+     * @return true if this is a buy order, false otherwise
+     */
+    public abstract boolean isBuyOrder();
+
     /**
      * Returns the product being bought or sold.
      *
@@ -105,14 +286,22 @@ public abstract class Order {
     /**
      * Returns the price unit of the product.
      *
-     * @return the price unit of the product
+     * @return the price unit of the product in cents
      */
-    public double getPriceUnit() {
+    public long getPriceUnit() {
         return priceUnit;
     }
 
-    public void waitUntilCompleted(int i, TimeUnit timeUnit) throws InterruptedException {
-        completed.await(i, timeUnit);
+    /**
+     * Returns the completion of the order. It is completed with FILLED once the
+     * whole quantity was traded, or with PARTIALLY_FILLED or EXPIRED once the
+     * order expires. Completions of several orders can be combined to wait for
+     * all of them at once.
+     *
+     * @return the completion of the order
+     */
+    public CompletableFuture<Status> getCompletion() {
+        return completion;
     }
 
     /**
@@ -131,34 +320,32 @@ public abstract class Order {
      */
     private static class SellOrder extends Order {
 
-        private SellOrder(Player issuer, CatalogProduct item, int quantity, double minSellPrice) {
-            super(issuer, item, quantity, minSellPrice);
-            Market.getInstance().addSellOrder(this);
-            getIssuer().getHistory().addBuySellRecord(Main.getRound(), item, 0, 0, quantity, 0);
-            Market.getInstance().getHistory().addBuySellRecord(Main.getRound(), item, 0, 0, quantity, 0);
-
+        @Override
+        public boolean isBuyOrder() {
+            return false;
         }
 
         @Override
-        protected double calculatePrice(double minSellPrice) {
+        protected long calculatePrice(long minSellPrice) {
             return calculateSellPrice(minSellPrice);
         }
 
-        private double calculateSellPrice(double minSellPrice) {
-            int currentRound = Main.getRound();
-            int playerSoldPreviousRound = getIssuer().getHistory().getSold(currentRound - 1, getProduct());
-            int marketSoldPreviousRound = Market.getInstance().getHistory().getSold(currentRound - 1, getProduct());
+        private long calculateSellPrice(long minSellPrice) {
+            History.RoundSnapshot playerPreviousRound = getIssuer().getHistory().getPreviousRound();
+            History.RoundSnapshot marketPreviousRound = Market.getInstance().getHistory().getPreviousRound();
+            int playerSoldPreviousRound = playerPreviousRound.getSold(getProduct());
+            int marketSoldPreviousRound = marketPreviousRound.getSold(getProduct());
             double playerRatio = (double) playerSoldPreviousRound / marketSoldPreviousRound;
             if (Double.isNaN(playerRatio)) {
                 playerRatio = 0;
             }
-            int playerDesiredQuantityLastRound = getIssuer().getHistory().getDesiredSell(currentRound - 1, getProduct());
-            int marketDesiredQuantityLastRound = Market.getInstance().getHistory().getDesiredSell(currentRound - 1, getProduct());
+            int playerDesiredQuantityLastRound = playerPreviousRound.getDesiredSell(getProduct());
+            int marketDesiredQuantityLastRound = marketPreviousRound.getDesiredSell(getProduct());
             double playerDesireRatio = (double) playerDesiredQuantityLastRound / marketDesiredQuantityLastRound;
             if (Double.isNaN(playerDesireRatio)) {
                 playerDesireRatio = 0;
             }
-            double recommendedPrice = getProduct().getRecommendedPrice();
+            long anchorPrice = anchorPrice();
 
             /**Adjust the price based on the player ratio*/
 
@@ -167,24 +354,24 @@ public abstract class Order {
             // playerDesireRatio -> 1 -> player is the only one wanting to sell -> higher price
             // playerDesireRatio -> 0 -> player is not wanting to sell -> lower price
             double factor = (playerDesireRatio * playerRatio) / 10;
-            double adjustedPrice = recommendedPrice * (1 - factor);
 
-            // Round the price to cents
-            adjustedPrice = Math.floor(adjustedPrice * 100) / 100.0;
+            // Round the price down to cents
+            long adjustedPrice = Money.scale(anchorPrice, 1 - factor);
             return Math.max(adjustedPrice, minSellPrice);
         }
 
 
         /**
-         * Sells the product to the partner and updates the players' stocks and money
-         * accordingly.
+         * Sells the product to the counterparty and updates the players' stocks and
+         * money accordingly.
          *
-         * @param partner      the player who is buying the product
          * @param soldQuantity the quantity of the product being sold
+         * @param priceUnit    the unit price the product is sold at
+         * @param counterparty the description of the buyer
          */
         @Override
-        public void execute(Player partner, int soldQuantity) {
-            double totalPrice = soldQuantity * getPriceUnit();
+        protected void execute(int soldQuantity, long priceUnit, Player counterparty) {
+            long totalPrice = soldQuantity * priceUnit;
 
             /**
              * Reduce stock quantity and increase player's money
@@ -192,9 +379,9 @@ public abstract class Order {
             super.issuer.getStock().removeProducts(getProduct(), soldQuantity);
             super.issuer.addMoney(totalPrice);
             super.quantity -= soldQuantity;
-            super.issuer.getHistory().addBuySellRecord(super.issuer.getRound(), super.product, 0, soldQuantity, 0, 0);
-            Market.getInstance().getHistory().addBuySellRecord(super.issuer.getRound(), super.product, 0, soldQuantity, 0, 0);
-            Log.getInstance().addMessage(super.issuer.getName() + " Sold " + soldQuantity + " units of " + super.product.getName() + " for " + totalPrice + " to " + partner.getType() + " " + partner.getName(), Log.Level.INFO);
+            if (Log.getInstance().isEnabled(Log.Level.INFO) && Log.getInstance().isTradeTextEnabled()) {
+                Log.getInstance().addMessage(super.issuer.getName() + " Sold " + soldQuantity + " units of " + super.product.getName() + " for " + Money.format(totalPrice) + " to " + describe(counterparty), Log.Level.INFO);
+            }
 
             /**
              * Check if the order is complete
@@ -213,43 +400,32 @@ public abstract class Order {
      * method to execute the order when it matches with a sell order in the market.
      */
     private static class BuyOrder extends Order {
-        /**
-         * Constructs a BuyOrder instance.
-         *
-         * @param issuer   the player who placed the buy order
-         * @param item     the catalog product to be bought
-         * @param quantity the quantity of the product to be bought
-         */
-
-        private BuyOrder(Player issuer, CatalogProduct item, int quantity, double maxPrice) {
-            super(issuer, item, quantity, maxPrice);
-            super.priceUnit = calculatePrice(maxPrice);
-            Market.getInstance().addBuyOrder(this);
-            getIssuer().getHistory().addBuySellRecord(Main.getRound(), item, 0, 0, 0, quantity);
-            Market.getInstance().getHistory().addBuySellRecord(Main.getRound(), item, 0, 0, 0, quantity);
-
+        @Override
+        public boolean isBuyOrder() {
+            return true;
         }
 
         @Override
-        protected double calculatePrice(double maxPrice) {
+        protected long calculatePrice(long maxPrice) {
             return calculateBuyPrice(maxPrice);
         }
 
-        private double calculateBuyPrice(double maxPrice) {
-            int currentRound = Main.getRound();
-            int playerBoughtPreviousRound = getIssuer().getHistory().getBought(currentRound - 1, getProduct());
-            int marketBoughtPreviousRound = Market.getInstance().getHistory().getBought(currentRound - 1, getProduct());
+        private long calculateBuyPrice(long maxPrice) {
+            History.RoundSnapshot playerPreviousRound = getIssuer().getHistory().getPreviousRound();
+            History.RoundSnapshot marketPreviousRound = Market.getInstance().getHistory().getPreviousRound();
+            int playerBoughtPreviousRound = playerPreviousRound.getBought(getProduct());
+            int marketBoughtPreviousRound = marketPreviousRound.getBought(getProduct());
             double playerRatio = (double) playerBoughtPreviousRound / marketBoughtPreviousRound;
             if (Double.isNaN(playerRatio)) {
                 playerRatio = 0;
             }
-            int playerDesiredQuantityLastRound = getIssuer().getHistory().getDesiredBuy(currentRound - 1, getProduct());
-            int marketDesiredQuantityLastRound = Market.getInstance().getHistory().getDesiredBuy(currentRound - 1, getProduct());
+            int playerDesiredQuantityLastRound = playerPreviousRound.getDesiredBuy(getProduct());
+            int marketDesiredQuantityLastRound = marketPreviousRound.getDesiredBuy(getProduct());
             double playerDesireRatio = (double) playerDesiredQuantityLastRound / marketDesiredQuantityLastRound;
             if (Double.isNaN(playerDesireRatio)) {
                 playerDesireRatio = 0;
             }
-            double recommendedPrice = getProduct().getRecommendedPrice();
+            long anchorPrice = anchorPrice();
 
             /**Adjust the price based on the following factor*/
             // playerRatio -> 1 -> player is the only one buying -> lower price
@@ -257,10 +433,9 @@ public abstract class Order {
             // playerDesireRatio -> 1 -> player is the only one wanting to buy -> lower price
             // playerDesireRatio -> 0 -> player is not wanting to buy -> higher price
             double factor = (playerDesireRatio * playerRatio) / 10;
-            double adjustedPrice = recommendedPrice * (1 + factor);
 
-            /**Round the price to cents*/
-            adjustedPrice = Math.floor(adjustedPrice * 100) / 100.0;
+            /**Round the price down to cents*/
+            long adjustedPrice = Money.scale(anchorPrice, 1 + factor);
             return Math.min(adjustedPrice, maxPrice);
         }
 
@@ -269,13 +444,14 @@ public abstract class Order {
          * calculates the total price and updates the stock and money of the players
          * involved.
          *
-         * @param partner        the player who placed the matching sell order
          * @param boughtQuantity the quantity of the product bought in the matching sell
          *                       order
+         * @param priceUnit      the unit price the product is bought at
+         * @param counterparty   the description of the seller
          */
         @Override
-        public void execute(Player partner, int boughtQuantity) {
-            double totalPrice = boughtQuantity * getPriceUnit();
+        protected void execute(int boughtQuantity, long priceUnit, Player counterparty) {
+            long totalPrice = boughtQuantity * priceUnit;
 
             /**
              * Increase stock quantity and reduce player's money
@@ -284,9 +460,9 @@ public abstract class Order {
             super.issuer.removeMoney(totalPrice);
             super.quantity -= boughtQuantity;
 
-            super.issuer.getHistory().addBuySellRecord(super.issuer.getRound(), super.product, boughtQuantity, 0, 0, 0);
-            Market.getInstance().getHistory().addBuySellRecord(super.issuer.getRound(), super.product, boughtQuantity, 0, 0, 0);
-            Log.getInstance().addMessage(super.issuer.getName() + " bought " + boughtQuantity + " units of " + super.product.getName() + " for " + totalPrice + " from " + partner.getType() + " " + partner.getName(), Log.Level.INFO);
+            if (Log.getInstance().isEnabled(Log.Level.INFO) && Log.getInstance().isTradeTextEnabled()) {
+                Log.getInstance().addMessage(super.issuer.getName() + " bought " + boughtQuantity + " units of " + super.product.getName() + " for " + Money.format(totalPrice) + " from " + describe(counterparty), Log.Level.INFO);
+            }
             /**
              * check if the order is complete
              */
@@ -297,5 +473,82 @@ public abstract class Order {
 
     }
 
+    /**
+     * The Status enum represents how an order was completed.
+     * <p>
+     * FILLED means the whole quantity was traded, PARTIALLY_FILLED means the order
+     * expired after a part of the quantity was traded and EXPIRED means the order
+     * expired without any trade.
+     */
+    public enum Status {
+        FILLED, PARTIALLY_FILLED, EXPIRED
+    }
+
+    /**
+     * The TimeInForce class defines how many rounds an order rests in the market
+     * before it expires. Orders that are good till cancelled never expire.
+     */
+    public static final class TimeInForce {
+        private static final TimeInForce GOOD_TILL_CANCELLED = new TimeInForce(0);
+        private static final TimeInForce GOOD_FOR_ROUND = new TimeInForce(1);
+
+        /**
+         * The number of rounds the order rests in the market, or 0 if it never
+         * expires.
+         */
+        private final int rounds;
+
+        private TimeInForce(int rounds) {
+            this.rounds = rounds;
+        }
+
+        /**
+         * Returns a time in force that expires the order at the end of the round it
+         * was placed in.
+         *
+         * @return the good for round time in force
+         */
+        public static TimeInForce goodForRound() {
+            return GOOD_FOR_ROUND;
+        }
 
+        /**
+         * Returns a time in force that never expires the order.
+         *
+         * @return the good till cancelled time in force
+         */
+        public static TimeInForce goodTillCancelled() {
+            return GOOD_TILL_CANCELLED;
+        }
+
+        /**
+         * Returns a time in force that expires the order after the given number of
+         * rounds, including the round it was placed in.
+         *
+         * @param rounds the number of rounds the order rests in the market
+         * @return the time in force
+         * @throws IllegalArgumentException if the number of rounds is not positive
+         */
+        public static TimeInForce rounds(int rounds) {
+            if (rounds < 1) {
+                throw new IllegalArgumentException("Invalid number of rounds: " + rounds);
+            }
+            return new TimeInForce(rounds);
+        }
+
+        /**
+         * Returns the last round in which an order placed in the given round rests
+         * in the market.
+         *
+         * @param round the round the order is placed in
+         * @return the expiry round, or Integer.MAX_VALUE if the order never expires
+         * or its expiry round is beyond the range of rounds
+         */
+        int getExpiryRound(int round) {
+            if (rounds == 0 || rounds - 1 >= Integer.MAX_VALUE - round) {
+                return Integer.MAX_VALUE;
+            }
+            return round + rounds - 1;
+        }
+    }
 }
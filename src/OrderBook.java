@@ -0,0 +1,553 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * The OrderBook class is a price-time-priority limit order book for a single
+ * catalog product. Prices in cents are used directly as ticks of the price
+ * grid, and every tick holds a FIFO queue of the orders resting at that price.
+ * Each side only stores the range of ticks it holds orders at, and keeps a
+ * pointer to its best price level, so the top of the book is available in
+ * constant time and orders with equal prices are kept in arrival order instead
+ * of being merged. Moving the best pointer and compacting a side cost in the
+ * number of occupied levels, not in the range of prices. The book releases
+ * every order that leaves it, so the order can be recycled.
+ */
+public class OrderBook {
+    /**
+     * The product traded in this book.
+     */
+    private final CatalogProduct product;
+    /**
+     * The buy side of the book, best price is the highest tick.
+     */
+    private final Side bids;
+    /**
+     * The sell side of the book, best price is the lowest tick.
+     */
+    private final Side asks;
+    /**
+     * The number of expired orders that may still rest inside the price levels.
+     */
+    private int expiredOrders;
+    /**
+     * The number of orders counted as expired that are not yet applied to the book.
+     */
+    private int newlyExpiredOrders;
+    /**
+     * The fills of the orders of this book in the current round.
+     */
+    private final FillLog fills;
+    /**
+     * Whether the book received orders since it was last matched. Only used by
+     * the market thread.
+     */
+    private boolean dirty;
+    /**
+     * The demand and supply curves and the pro rata shares of the call auction,
+     * reused for every clearing of this book. Only used while holding the lock
+     * of the book.
+     */
+    private long[] demandCurve = new long[16];
+    private long[] supplyCurve = new long[16];
+    private int[] auctionShares = new int[16];
+
+    /**
+     * Constructs an empty order book for the given product.
+     *
+     * @param product the product traded in this book
+     */
+    public OrderBook(CatalogProduct product) {
+        this.product = product;
+        this.bids = new Side(true);
+        this.asks = new Side(false);
+        this.fills = new FillLog();
+    }
+
+    /**
+     * Converts a unit price to its tick on the price grid.
+     *
+     * @param price the unit price in cents
+     * @return the tick of the price
+     */
+    static int toTick(long price) {
+        return Math.toIntExact(price);
+    }
+
+    /**
+     * Returns the product traded in this book.
+     *
+     * @return the product traded in this book
+     */
+    public CatalogProduct getProduct() {
+        return product;
+    }
+
+    /**
+     * Returns the fills of the orders of this book in the current round.
+     *
+     * @return the fill log of the book
+     */
+    public FillLog getFills() {
+        return fills;
+    }
+
+    /**
+     * Marks the book as dirty.
+     *
+     * @return true if the book was clean before, false if it already was dirty
+     */
+    public boolean markDirty() {
+        if (dirty) {
+            return false;
+        }
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * Marks the book as clean once it is matched.
+     */
+    public void markClean() {
+        dirty = false;
+    }
+
+    /**
+     * Adds a buy order at the end of the queue of its price level.
+     *
+     * @param order the buy order to be added
+     */
+    public void addBuyOrder(Order order) {
+        bids.add(order);
+    }
+
+    /**
+     * Adds a sell order at the end of the queue of its price level.
+     *
+     * @param order the sell order to be added
+     */
+    public void addSellOrder(Order order) {
+        asks.add(order);
+    }
+
+    /**
+     * Returns the oldest buy order at the highest price, or null if there are no
+     * buy orders.
+     *
+     * @return the best buy order
+     */
+    public Order getBestBuyOrder() {
+        return bids.peek();
+    }
+
+    /**
+     * Returns the oldest sell order at the lowest price, or null if there are no
+     * sell orders.
+     *
+     * @return the best sell order
+     */
+    public Order getBestSellOrder() {
+        return asks.peek();
+    }
+
+    /**
+     * Removes the best buy order from the book.
+     */
+    public void removeBestBuyOrder() {
+        bids.poll();
+    }
+
+    /**
+     * Removes the best sell order from the book.
+     */
+    public void removeBestSellOrder() {
+        asks.poll();
+    }
+
+    /**
+     * Returns the tick of the highest buy price, or -1 if there are no buy orders.
+     *
+     * @return the tick of the best buy price
+     */
+    public int getBestBuyTick() {
+        return bids.bestTick();
+    }
+
+    /**
+     * Returns the tick of the lowest sell price, or -1 if there are no sell orders.
+     *
+     * @return the tick of the best sell price
+     */
+    public int getBestSellTick() {
+        return asks.bestTick();
+    }
+
+    /**
+     * Returns the buy orders resting at the given tick in arrival order. The queue
+     * of the level is returned without a copy or a wrapper, so it must not be
+     * modified.
+     *
+     * @param tick the tick of the price level
+     * @return the buy orders of the price level
+     */
+    public Collection<Order> getBuyOrdersAt(int tick) {
+        return bids.level(tick);
+    }
+
+    /**
+     * Returns the sell orders resting at the given tick in arrival order. The
+     * queue of the level is returned without a copy or a wrapper, so it must not
+     * be modified.
+     *
+     * @param tick the tick of the price level
+     * @return the sell orders of the price level
+     */
+    public Collection<Order> getSellOrdersAt(int tick) {
+        return asks.level(tick);
+    }
+
+    /**
+     * Returns the array the demand curve of the call auction is aggregated in,
+     * holding at least the given number of price levels.
+     *
+     * @param levels the number of price levels
+     * @return the reused demand curve
+     */
+    public long[] getDemandCurve(int levels) {
+        if (demandCurve.length < levels) {
+            demandCurve = new long[Math.max(levels, demandCurve.length * 2)];
+        }
+        return demandCurve;
+    }
+
+    /**
+     * Returns the array the supply curve of the call auction is aggregated in,
+     * holding at least the given number of price levels.
+     *
+     * @param levels the number of price levels
+     * @return the reused supply curve
+     */
+    public long[] getSupplyCurve(int levels) {
+        if (supplyCurve.length < levels) {
+            supplyCurve = new long[Math.max(levels, supplyCurve.length * 2)];
+        }
+        return supplyCurve;
+    }
+
+    /**
+     * Returns the array the pro rata shares of a price level are computed in,
+     * holding at least the given number of orders, all set to zero.
+     *
+     * @param orders the number of orders of the price level
+     * @return the reused shares
+     */
+    public int[] getAuctionShares(int orders) {
+        if (auctionShares.length < orders) {
+            auctionShares = new int[Math.max(orders, auctionShares.length * 2)];
+        } else {
+            Arrays.fill(auctionShares, 0, orders, 0);
+        }
+        return auctionShares;
+    }
+
+    /**
+     * Removes the complete orders from the best price levels of both sides. The
+     * levels are cleaned from the best price towards the worse prices until a
+     * level still holds an open order, which is where a call auction stops
+     * filling.
+     */
+    public void removeCompleteOrders() {
+        bids.removeCompleteOrders();
+        asks.removeCompleteOrders();
+    }
+
+    /**
+     * Counts an order of this book that has expired in the current round. The
+     * count is applied to the book with applyExpiredOrders.
+     *
+     * @return true if it is the first expired order counted since the count was
+     * last applied, false otherwise
+     */
+    public boolean countExpiredOrder() {
+        return newlyExpiredOrders++ == 0;
+    }
+
+    /**
+     * Applies the orders of this book counted as expired. Expired orders at the
+     * top of the book are dropped right away. The ones deeper in the book are
+     * dropped when they reach the top, or when more than half of the resting
+     * orders have expired, in which case the whole book is compacted. This keeps
+     * the cost of expiry proportional to the number of expired orders.
+     *
+     * @return the number of orders that have expired
+     */
+    public int applyExpiredOrders() {
+        int expired = newlyExpiredOrders;
+        newlyExpiredOrders = 0;
+        expiredOrders += expired;
+        bids.advance();
+        asks.advance();
+        if (expiredOrders * 2 > bids.count + asks.count) {
+            bids.compact();
+            asks.compact();
+            expiredOrders = 0;
+        }
+        return expired;
+    }
+
+    /**
+     * Checks if the best buy price is at or above the best sell price, which means
+     * that the two best orders can be traded.
+     *
+     * @return true if the book is crossed, false otherwise
+     */
+    public boolean isCrossed() {
+        return !bids.isEmpty() && !asks.isEmpty() && bids.bestTick() >= asks.bestTick();
+    }
+
+    /**
+     * Returns the number of buy orders resting in the book.
+     *
+     * @return the number of buy orders
+     */
+    public int getNumberOfBuyOrders() {
+        return bids.count;
+    }
+
+    /**
+     * Returns the number of sell orders resting in the book.
+     *
+     * @return the number of sell orders
+     */
+    public int getNumberOfSellOrders() {
+        return asks.count;
+    }
+
+    private static boolean releaseIfComplete(Order order) {
+        if (order.isComplete()) {
+            order.release();
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean releaseIfExpired(Order order) {
+        if (order.isExpired()) {
+            order.release();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes all orders from the book.
+     */
+    public void clear() {
+        bids.clear();
+        asks.clear();
+        expiredOrders = 0;
+        newlyExpiredOrders = 0;
+    }
+
+    /**
+     * One side of the book. The price levels are stored in an array indexed by
+     * the offset of their tick from a base tick, so the array only spans the
+     * range of prices resting on this side. The array is re-centred on the first
+     * order of an empty side and grows towards either end when a price falls
+     * outside of it. A bitmap marks the occupied levels, so the best pointer
+     * jumps to the next occupied level instead of scanning the empty ones. A
+     * level is retired as soon as it runs empty, and its queue is kept for reuse.
+     * Expired orders are dropped lazily when they reach the head of the best
+     * level, or all at once when the book is compacted.
+     */
+    private class Side {
+        private final boolean descending;
+        private ArrayDeque<Order>[] levels;
+        private final BitSet occupied;
+        private final ArrayDeque<ArrayDeque<Order>> spareLevels;
+        private int base;
+        private int best;
+        private int count;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Side(boolean descending) {
+            this.descending = descending;
+            this.levels = (ArrayDeque<Order>[]) new ArrayDeque[64];
+            this.occupied = new BitSet(levels.length);
+            this.spareLevels = new ArrayDeque<>();
+            this.base = 0;
+            this.best = -1;
+            this.count = 0;
+        }
+
+        private boolean isEmpty() {
+            return count == 0;
+        }
+
+        private int bestTick() {
+            return count == 0 ? -1 : base + best;
+        }
+
+        private void add(Order order) {
+            int tick = toTick(order.getPriceUnit());
+            if (count == 0 && occupied.isEmpty()) {
+                /** An empty side is re-centred on the new price*/
+                base = tick - levels.length / 2;
+            }
+            if (tick < base || tick - base >= levels.length) {
+                grow(tick);
+            }
+            int index = tick - base;
+            ArrayDeque<Order> level = levels[index];
+            if (level == null) {
+                level = spareLevels.isEmpty() ? new ArrayDeque<>() : spareLevels.pop();
+                levels[index] = level;
+                occupied.set(index);
+            }
+            level.addLast(order);
+            if (count == 0 || (descending ? index > best : index < best)) {
+                best = index;
+            }
+            count++;
+        }
+
+        private Order peek() {
+            return count == 0 ? null : levels[best].peekFirst();
+        }
+
+        private void poll() {
+            if (count == 0) {
+                return;
+            }
+            levels[best].pollFirst().release();
+            count--;
+            advance();
+        }
+
+        /**
+         * Drops the expired orders at the head of the best level, retires the best
+         * level once it is empty and moves the best pointer to the next occupied
+         * level.
+         */
+        private void advance() {
+            while (count > 0) {
+                ArrayDeque<Order> level = levels[best];
+                if (level == null || level.isEmpty()) {
+                    retire(best);
+                    best = descending ? occupied.previousSetBit(best) : occupied.nextSetBit(best);
+                } else if (level.peekFirst().isExpired()) {
+                    level.pollFirst().release();
+                    count--;
+                    expiredOrders--;
+                } else {
+                    return;
+                }
+            }
+            if (best >= 0 && levels[best] != null && levels[best].isEmpty()) {
+                retire(best);
+            }
+            best = -1;
+        }
+
+        /**
+         * Removes the level at the given index from the side and keeps its queue
+         * for reuse.
+         */
+        private void retire(int index) {
+            ArrayDeque<Order> level = levels[index];
+            if (level != null) {
+                levels[index] = null;
+                spareLevels.push(level);
+            }
+            occupied.clear(index);
+        }
+
+        private Collection<Order> level(int tick) {
+            int index = tick - base;
+            if (index < 0 || index >= levels.length || levels[index] == null) {
+                return Collections.emptyList();
+            }
+            return levels[index];
+        }
+
+        private void removeCompleteOrders() {
+            while (count > 0) {
+                ArrayDeque<Order> level = levels[best];
+                int size = level.size();
+                level.removeIf(OrderBook::releaseIfComplete);
+                count -= size - level.size();
+                if (!level.isEmpty()) {
+                    advance();
+                    return;
+                }
+                advance();
+            }
+        }
+
+        /**
+         * Removes all expired orders and retires the empty levels. Only the occupied
+         * levels are visited.
+         */
+        private void compact() {
+            int removed = 0;
+            for (int index = occupied.nextSetBit(0); index >= 0; index = occupied.nextSetBit(index + 1)) {
+                ArrayDeque<Order> level = levels[index];
+                int size = level.size();
+                level.removeIf(OrderBook::releaseIfExpired);
+                removed += size - level.size();
+                if (level.isEmpty()) {
+                    retire(index);
+                }
+            }
+            count -= removed;
+            if (count > 0) {
+                best = descending ? occupied.length() - 1 : occupied.nextSetBit(0);
+            }
+            advance();
+        }
+
+        private void clear() {
+            for (int index = occupied.nextSetBit(0); index >= 0; index = occupied.nextSetBit(index + 1)) {
+                ArrayDeque<Order> level = levels[index];
+                level.forEach(Order::release);
+                level.clear();
+                retire(index);
+            }
+            best = -1;
+            count = 0;
+        }
+
+        /**
+         * Grows the array of the levels so it spans the given tick. The levels keep
+         * their ticks, and the new array leaves room on both sides of the occupied
+         * range.
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private void grow(int tick) {
+            int low = Math.min(tick, occupied.isEmpty() ? tick : base + occupied.nextSetBit(0));
+            int high = Math.max(tick, occupied.isEmpty() ? tick : base + occupied.length() - 1);
+            int span = high - low + 1;
+            int length = levels.length;
+            while (length < span * 2) {
+                length *= 2;
+            }
+            int newBase = low - (length - span) / 2;
+            int shift = base - newBase;
+            ArrayDeque<Order>[] grown = (ArrayDeque<Order>[]) new ArrayDeque[length];
+            BitSet moved = new BitSet(length);
+            for (int index = occupied.nextSetBit(0); index >= 0; index = occupied.nextSetBit(index + 1)) {
+                grown[index + shift] = levels[index];
+                moved.set(index + shift);
+            }
+            occupied.clear();
+            occupied.or(moved);
+            if (best >= 0) {
+                best += shift;
+            }
+            levels = grown;
+            base = newBase;
+        }
+    }
+}
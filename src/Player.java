@@ -7,7 +7,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Phaser;
 import java.util.stream.Collectors;
 
 
@@ -17,6 +17,12 @@ import java.util.stream.Collectors;
  */
 public class Player {
 
+    /**
+     * The balance of a player with an unlimited amount of money, which is not
+     * changed by payments.
+     */
+    public static final long UNLIMITED_MONEY = Long.MAX_VALUE;
+
     /**
      * A list of all players in the game.
      */
@@ -49,9 +55,10 @@ public class Player {
      */
     private Type type;
     /**
-     * The balance of money of the player.
+     * The balance of money of the player in cents. UNLIMITED_MONEY stands for an
+     * unlimited balance.
      */
-    private double money = Double.POSITIVE_INFINITY;
+    private long money = UNLIMITED_MONEY;
 
     /**
      * Constructs a player with the given name and type.
@@ -81,15 +88,35 @@ public class Player {
         return players.size();
     }
 
+    /**
+     * Returns a copy of the list of active players.
+     *
+     * @return the active players
+     */
+    public synchronized static List<Player> getActivePlayers() {
+        return new ArrayList<>(players);
+    }
+
     /**
      * Removes a player from the list of all players in the game.
      *
      * @param player the player to be removed
      */
-    public static void removePlayer(Player player) {
+    public synchronized static void removePlayer(Player player) {
         players.remove(player);
     }
 
+    /**
+     * Publishes the snapshot of the given round in the history of every player.
+     *
+     * @param round the round that has just finished
+     */
+    public synchronized static void publishRoundSnapshots(int round) {
+        for (Player player : players) {
+            player.history.publishSnapshot(round);
+        }
+    }
+
     /**
      * Adds the given player to the list of active players.
      *
@@ -137,6 +164,18 @@ public class Player {
         Log.getInstance().addMessage(message, level);
     }
 
+    /**
+     * Logs a message formatted with one argument to the application log. The text
+     * is only formatted if the level is enabled.
+     *
+     * @param level  the level of the message
+     * @param format the format of the message
+     * @param arg    the argument of the format
+     */
+    public void log(Log.Level level, String format, Object arg) {
+        Log.getInstance().addMessage(level, format, arg);
+    }
+
     /**
      * Returns the name of the player.
      *
@@ -167,28 +206,33 @@ public class Player {
     /**
      * Returns the balance of money of the player.
      *
-     * @return the balance of money of the player
+     * @return the balance of money of the player in cents
      */
-    public double getMoney() {
+    public synchronized long getMoney() {
         return money;
     }
 
     /**
      * Adds the given amount of money to the player's account.
+     * Orders of different products can be executed at the same time, so the account is updated under the player's lock.
      *
-     * @param amount the amount of money to be added
+     * @param amount the amount of money to be added in cents
      */
-    public void addMoney(double amount) {
-        this.money += amount;
+    public synchronized void addMoney(long amount) {
+        if (this.money != UNLIMITED_MONEY) {
+            this.money += amount;
+        }
     }
 
     /**
      * Removes the given amount of money from the player's account.
      *
-     * @param amount the amount of money to be removed
+     * @param amount the amount of money to be removed in cents
      */
-    public void removeMoney(double amount) {
-        this.money -= amount;
+    public synchronized void removeMoney(long amount) {
+        if (this.money != UNLIMITED_MONEY) {
+            this.money -= amount;
+        }
     }
 
     public History getHistory() {
@@ -309,52 +353,81 @@ public class Player {
          */
         @Override
         public void run() {
-            Player player = new Player(this.name, this.type, this.activities, this.priceTolerance);
+            Player player = createPlayer();
 
-            // Notify the player is loaded
-            Synchronizer.notifyPlayerLoaded();
-
-            // Wait until the game starts
+            // Notify the player is loaded, also if it cannot join the rounds
+            Phaser rounds;
             try {
-                Synchronizer.waitGameStart();
-            } catch (InterruptedException e) {
-                player.log("Player %s left before the game started".formatted(this.name), Log.Level.WARNING);
-                throw new RuntimeException(e);
+                rounds = Synchronizer.registerPlayer();
+            } catch (IllegalStateException e) {
+                player.log(Log.Level.WARNING, "Player %s could not join the game", this.name);
+                removePlayer(player);
+                return;
+            } finally {
+                Synchronizer.notifyPlayerLoaded();
             }
 
-            /**
-
-             Executes the game loop for the player, playing rounds until the game is finished.
-             @param player the player participating in the game
-             @throws RuntimeException if an interruption occurs during the waiting period for a new round and the game is not finished
-             */
-            /**Play the game until finished*/
-            while (!Synchronizer.gameFinished()) {
+            // Leave the rounds if the player stops before the game is finished, so the rounds don't wait for it
+            boolean finished = false;
+            try {
+                // Wait until the game starts
                 try {
-                    /**Wait for a new round*/
-                    Synchronizer.waitRoundStarted();
-
-                    /** Play the round*/
-                    player.log("Player %s starting a new round".formatted(this.name), Log.Level.DEBUG);
-                    player.playRound();
-
-                    /** Mark turn as finished*/
-                    Synchronizer.notifyPlayerFinishedRound();
-                    player.log("Player %s finished the round".formatted(this.name), Log.Level.DEBUG);
-
-                    /** Wait for round's end*/
-                    Synchronizer.waitRoundFinished();
-
+                    Synchronizer.waitGameStart();
                 } catch (InterruptedException e) {
-                    if (!Synchronizer.gameFinished()) {
-                        player.log("Player %s left before the game finished".formatted(this.name), Log.Level.WARNING);
-                        removePlayer(player);
-                        throw new RuntimeException(e);
+                    player.log(Log.Level.WARNING, "Player %s left before the game started", this.name);
+                    throw new RuntimeException(e);
+                }
+
+                /**
+
+                 Executes the game loop for the player, playing rounds until the game is finished.
+                 @param player the player participating in the game
+                 @throws RuntimeException if an interruption occurs during the waiting period for a new round and the game is not finished
+                 */
+                /**Play the game until finished*/
+                while (!Synchronizer.gameFinished()) {
+                    try {
+                        /**Wait for a new round*/
+                        Synchronizer.waitRoundStarted(rounds);
+                        if (Synchronizer.gameFinished()) {
+                            break;
+                        }
+
+                        /** Play the round*/
+                        player.log(Log.Level.DEBUG, "Player %s starting a new round", this.name);
+                        player.playRound();
+
+                        /** Mark turn as finished and wait for round's end*/
+                        player.log(Log.Level.DEBUG, "Player %s finished the round", this.name);
+                        Synchronizer.notifyPlayerFinishedRoundAndWait(rounds);
+
+                    } catch (InterruptedException e) {
+                        if (!Synchronizer.gameFinished()) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+                finished = true;
+            } finally {
+                if (!finished && !Synchronizer.gameFinished()) {
+                    if (Synchronizer.gameStarted()) {
+                        player.log(Log.Level.WARNING, "Player %s left before the game finished", this.name);
                     }
+                    removePlayer(player);
+                    Synchronizer.notifyPlayerLeft(rounds);
                 }
             }
         }
 
+        /**
+         * Creates the player of this controller.
+         *
+         * @return the created player
+         */
+        public Player createPlayer() {
+            return new Player(this.name, this.type, this.activities, this.priceTolerance);
+        }
+
         /**
          * Returns the name of the player.
          *
@@ -366,79 +439,3 @@ public class Player {
 
     }
 }
-
-/**
- * The Stock class represents the stock of a player's products.
- */
-class Stock {
-
-    /**
-     * A map that associates each catalog product to a list of available products in stock.
-     */
-    private final Map<CatalogProduct, List<CatalogProduct.Product>> stock = new ConcurrentHashMap<>();
-
-    /**
-     * Removes a given quantity of products of a specified catalog product from the stock.
-     *
-     * @param catalogProduct the catalog product to remove products from
-     * @param quantity       the quantity of products to remove
-     */
-    public int removeProducts(CatalogProduct catalogProduct, int quantity) {
-        if (stock.containsKey(catalogProduct)) {
-            List<CatalogProduct.Product> products = stock.get(catalogProduct);
-            /** Get lock on the list of products*/
-            synchronized (products) {
-                quantity = Math.min(products.size(), quantity);
-                if (quantity > 0) {
-                    products.subList(0, quantity).clear();
-                    Log.getInstance().addMessage("Removed %d products of type %s from the stock".formatted(quantity, catalogProduct.getName()), Log.Level.DEBUG);
-                    return quantity;
-                }
-            }
-        }
-        return 0;
-    }
-
-    /**
-     * Adds a given quantity of a given product to the stock.
-     * If the product already exists in the stock, it adds the new products to the existing list of products.
-     *
-     * @param catalogProduct The product to add.
-     * @param quantity       The quantity of the product to add.
-     */
-    public void addProducts(CatalogProduct catalogProduct, int quantity) {
-        List<CatalogProduct.Product> products = stock.computeIfAbsent(catalogProduct, k -> new ArrayList<>());
-        synchronized (products) {
-            for (int i = 0; i < quantity; i++) {
-                CatalogProduct.Product product = new CatalogProduct.Product();
-                products.add(product);
-            }
-        }
-        Log.getInstance().addMessage("Added %d products of type %s to the stock".formatted(quantity, catalogProduct.getName()), Log.Level.DEBUG);
-    }
-
-    /**
-     * Returns the list of products in the stock for a given product.
-     *
-     * @param catalogProduct The product to get the list of products for.
-     * @return The list of products in the stock for the given product.
-     */
-    public List<CatalogProduct.Product> getProducts(CatalogProduct catalogProduct) {
-        return stock.getOrDefault(catalogProduct, new ArrayList<>());
-    }
-
-    /**
-     * Returns a map of product quantities for all products in the stock.
-     *
-     * @return A map of product quantities for all products in the stock.
-     */
-    public Map<CatalogProduct, Integer> getProductQuantities() {
-        Map<CatalogProduct, Integer> productQuantities = new ConcurrentHashMap<>();
-        for (CatalogProduct product : stock.keySet()) {
-            int quantity = stock.get(product).size();
-
-            productQuantities.merge(product, quantity, Integer::sum);
-        }
-        return productQuantities;
-    }
-}
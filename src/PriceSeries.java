@@ -0,0 +1,245 @@
+import java.util.Arrays;
+
+/**
+ * The PriceSeries class records the prices the market traded every product at,
+ * as one bar per product and round: the open, high, low and close price, the
+ * traded volume and the volume-weighted average price. The bars of the open
+ * round are kept in primitive arrays indexed by the product ID. When the round
+ * ends, every fill recorded in the fill logs of the order books is added to its
+ * bar in constant time, then the bars are moved into a ring of the most recent
+ * Main.historyRetainedRounds rounds and the average prices of the round are
+ * published to be read without locks.
+ */
+public class PriceSeries {
+    /**
+     * The number of products in the catalog, the width of one round in the ring.
+     */
+    private final int productCount;
+    /**
+     * The number of rounds kept in the ring.
+     */
+    private final int window;
+    /**
+     * The bars of the open round, indexed by product ID. The bar of a product is
+     * only updated while holding the lock of its order book.
+     */
+    private final long[] open;
+    private final long[] high;
+    private final long[] low;
+    private final long[] close;
+    private final int[] volume;
+    /**
+     * The sum of quantity times price of the trades of the open round, in cents.
+     */
+    private final long[] notional;
+    /**
+     * The bars of the finished rounds, indexed by round % window * productCount +
+     * productId. The ring grows up to the window as rounds are closed.
+     */
+    private long[] openRing;
+    private long[] highRing;
+    private long[] lowRing;
+    private long[] closeRing;
+    private long[] vwapRing;
+    private int[] volumeRing;
+    /**
+     * The newest round closed into the ring, or -1 before the first round ends.
+     */
+    private volatile int newestRound;
+    /**
+     * The volume-weighted average price of every product in the last finished
+     * round, 0 for products that were not traded.
+     */
+    private volatile long[] previousVwap;
+
+    /**
+     * Constructs an empty price series for the products of the catalog.
+     */
+    public PriceSeries() {
+        productCount = CatalogProduct.getCatalog().size();
+        window = Math.max(1, Main.historyRetainedRounds);
+        open = new long[productCount];
+        high = new long[productCount];
+        low = new long[productCount];
+        close = new long[productCount];
+        volume = new int[productCount];
+        notional = new long[productCount];
+        int slots = Math.min(window, 16);
+        openRing = new long[slots * productCount];
+        highRing = new long[slots * productCount];
+        lowRing = new long[slots * productCount];
+        closeRing = new long[slots * productCount];
+        vwapRing = new long[slots * productCount];
+        volumeRing = new int[slots * productCount];
+        newestRound = -1;
+        previousVwap = new long[productCount];
+    }
+
+    /**
+     * Adds a fill to the bar of the open round of the given product. Must be
+     * called while holding the lock of the order book of the product.
+     *
+     * @param product   the product traded
+     * @param quantity  the traded quantity
+     * @param priceUnit the unit price in cents the quantity was traded at
+     */
+    public void record(CatalogProduct product, int quantity, long priceUnit) {
+        int id = product.id;
+        if (volume[id] == 0) {
+            open[id] = priceUnit;
+            high[id] = priceUnit;
+            low[id] = priceUnit;
+        } else {
+            high[id] = Math.max(high[id], priceUnit);
+            low[id] = Math.min(low[id], priceUnit);
+        }
+        close[id] = priceUnit;
+        volume[id] += quantity;
+        notional[id] += quantity * priceUnit;
+    }
+
+    /**
+     * Moves the bars of the open round into the ring, publishes the average prices
+     * of the round and starts the next round. The bar of a product that was not
+     * traded in the round is stored as zeros. Must be called once the market
+     * finished the round, while no orders are traded.
+     *
+     * @param round the round that has ended
+     */
+    public void closeRound(int round) {
+        int from = slot(round);
+        long[] vwap = new long[productCount];
+        for (int id = 0; id < productCount; id++) {
+            if (volume[id] > 0) {
+                vwap[id] = Math.round((double) notional[id] / volume[id]);
+            } else {
+                /**The bar of a product that was not traded is all zeros*/
+                open[id] = 0;
+                high[id] = 0;
+                low[id] = 0;
+                close[id] = 0;
+            }
+            openRing[from + id] = open[id];
+            highRing[from + id] = high[id];
+            lowRing[from + id] = low[id];
+            closeRing[from + id] = close[id];
+            vwapRing[from + id] = vwap[id];
+            volumeRing[from + id] = volume[id];
+            volume[id] = 0;
+            notional[id] = 0;
+        }
+        newestRound = round;
+        previousVwap = vwap;
+    }
+
+    /**
+     * Returns the first index of the given round in the ring, growing the ring if
+     * it does not reach the round yet.
+     */
+    private int slot(int round) {
+        int slot = round % window;
+        int slots = openRing.length / Math.max(1, productCount);
+        if (slot >= slots) {
+            int grown = (int) Math.min(window, Math.max(slot + 1L, 2L * slots));
+            openRing = Arrays.copyOf(openRing, grown * productCount);
+            highRing = Arrays.copyOf(highRing, grown * productCount);
+            lowRing = Arrays.copyOf(lowRing, grown * productCount);
+            closeRing = Arrays.copyOf(closeRing, grown * productCount);
+            vwapRing = Arrays.copyOf(vwapRing, grown * productCount);
+            volumeRing = Arrays.copyOf(volumeRing, grown * productCount);
+        }
+        return slot * productCount;
+    }
+
+    /**
+     * Returns the volume-weighted average price of the given product in the last
+     * finished round. It is read without locks.
+     *
+     * @param product the product
+     * @return the average price in cents, or 0 if the product was not traded
+     */
+    public long getPreviousVwap(CatalogProduct product) {
+        long[] vwap = previousVwap;
+        return product.id < vwap.length ? vwap[product.id] : 0;
+    }
+
+    private int index(int round, CatalogProduct product) {
+        int newest = newestRound;
+        if (round > newest || round <= newest - window) {
+            return -1;
+        }
+        return round % window * productCount + product.id;
+    }
+
+    /**
+     * Returns the price of the first trade of the given product in the given round.
+     *
+     * @param round   the round
+     * @param product the product
+     * @return the open price in cents, or 0 if the product was not traded or the round is not kept
+     */
+    public long getOpen(int round, CatalogProduct product) {
+        int index = index(round, product);
+        return index < 0 ? 0 : openRing[index];
+    }
+
+    /**
+     * Returns the highest price the given product was traded at in the given round.
+     *
+     * @param round   the round
+     * @param product the product
+     * @return the high price in cents, or 0 if the product was not traded or the round is not kept
+     */
+    public long getHigh(int round, CatalogProduct product) {
+        int index = index(round, product);
+        return index < 0 ? 0 : highRing[index];
+    }
+
+    /**
+     * Returns the lowest price the given product was traded at in the given round.
+     *
+     * @param round   the round
+     * @param product the product
+     * @return the low price in cents, or 0 if the product was not traded or the round is not kept
+     */
+    public long getLow(int round, CatalogProduct product) {
+        int index = index(round, product);
+        return index < 0 ? 0 : lowRing[index];
+    }
+
+    /**
+     * Returns the price of the last trade of the given product in the given round.
+     *
+     * @param round   the round
+     * @param product the product
+     * @return the close price in cents, or 0 if the product was not traded or the round is not kept
+     */
+    public long getClose(int round, CatalogProduct product) {
+        int index = index(round, product);
+        return index < 0 ? 0 : closeRing[index];
+    }
+
+    /**
+     * Returns the volume-weighted average price of the given product in the given round.
+     *
+     * @param round   the round
+     * @param product the product
+     * @return the average price in cents, or 0 if the product was not traded or the round is not kept
+     */
+    public long getVwap(int round, CatalogProduct product) {
+        int index = index(round, product);
+        return index < 0 ? 0 : vwapRing[index];
+    }
+
+    /**
+     * Returns the quantity of the given product traded in the given round.
+     *
+     * @param round   the round
+     * @param product the product
+     * @return the traded quantity, or 0 if the round is not kept
+     */
+    public int getVolume(int round, CatalogProduct product) {
+        int index = index(round, product);
+        return index < 0 ? 0 : volumeRing[index];
+    }
+}
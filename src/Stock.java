@@ -0,0 +1,62 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The Stock class represents the stock of a player's products. The stock only
+ * counts the units of every product, in an array indexed by the ID of the
+ * catalog product, so checking or changing the quantity of a product takes
+ * constant time and does not allocate.
+ */
+class Stock {
+
+    /**
+     * The quantity in stock of every catalog product, indexed by its ID.
+     */
+    private final AtomicIntegerArray quantities = new AtomicIntegerArray(CatalogProduct.getCatalog().size());
+
+    /**
+     * Removes a given quantity of products of a specified catalog product from the stock.
+     * If there are fewer products in stock, all of them are removed.
+     *
+     * @param catalogProduct the catalog product to remove products from
+     * @param quantity       the quantity of products to remove
+     * @return the quantity of products removed
+     */
+    public int removeProducts(CatalogProduct catalogProduct, int quantity) {
+        int available;
+        int removed;
+        do {
+            available = quantities.get(catalogProduct.id);
+            removed = Math.min(available, quantity);
+            if (removed <= 0) {
+                return 0;
+            }
+        } while (!quantities.compareAndSet(catalogProduct.id, available, available - removed));
+        if (Log.getInstance().isEnabled(Log.Level.DEBUG) && Log.getInstance().isTradeTextEnabled()) {
+            Log.getInstance().addMessage(Log.Level.DEBUG, "Removed %d products of type %s from the stock", removed, catalogProduct.getName());
+        }
+        return removed;
+    }
+
+    /**
+     * Adds a given quantity of a given product to the stock.
+     *
+     * @param catalogProduct The product to add.
+     * @param quantity       The quantity of the product to add.
+     */
+    public void addProducts(CatalogProduct catalogProduct, int quantity) {
+        quantities.addAndGet(catalogProduct.id, quantity);
+        if (Log.getInstance().isEnabled(Log.Level.DEBUG) && Log.getInstance().isTradeTextEnabled()) {
+            Log.getInstance().addMessage(Log.Level.DEBUG, "Added %d products of type %s to the stock", quantity, catalogProduct.getName());
+        }
+    }
+
+    /**
+     * Returns the quantity of a given product in the stock.
+     *
+     * @param catalogProduct The product to get the quantity for.
+     * @return The quantity of the product in the stock.
+     */
+    public int getQuantity(CatalogProduct catalogProduct) {
+        return quantities.get(catalogProduct.id);
+    }
+}
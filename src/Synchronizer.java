@@ -1,9 +1,11 @@
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Phaser;
 
 /**
  * The Synchronizer class represents a synchronization mechanism for a multiplayer game.
- * It provides various CountDownLatch objects to synchronize the loading of players, the start of the game, the end of the game,
- * the start and end of each round, and to synchronize the closing of players and the market at the end of each round.
+ * It provides CountDownLatch objects to synchronize the loading of players, the start of the game and the end of the game,
+ * and reusable Phaser barriers to synchronize the start and end of each round between the main thread, the players and
+ * the market. A single Phaser holds at most 65535 parties, so the players are spread over tiers of child phasers.
  */
 public class Synchronizer {
 
@@ -23,24 +25,47 @@ public class Synchronizer {
     private static final CountDownLatch gameFinished = new CountDownLatch(1);
 
     /**
-     * The CountDownLatch object used to synchronize the start of each round.
+     * The maximum number of players registered on one tier of the rounds.
      */
-    private static CountDownLatch roundStarted = new CountDownLatch(1);
+    private static final int PLAYERS_PER_TIER = 1 << 15;
 
     /**
-     * The CountDownLatch object used to synchronize the end of each round.
+     * The barrier of the rounds. The main thread and the tiers of the players are
+     * registered parties. Even phases wait for the start of a round, which is
+     * reached once every player is ready and the main thread starts the round. Odd
+     * phases are the turns of a round, which end once every player has finished
+     * its turn and the main thread waits for them. The phaser is reused for all
+     * rounds, and players can register and deregister at any time. The phaser is
+     * terminated when the game is finished, which terminates its tiers and
+     * releases every waiting player.
      */
-    private static CountDownLatch roundFinished = new CountDownLatch(1);
+    private static final Phaser rounds = new Phaser(1);
 
     /**
-     * The CountDownLatch object used to synchronize the completion of all players at the end of each round.
+     * The tier new players are registered on. Each tier is a child phaser of the
+     * rounds, which takes part in the rounds while it has registered players. A
+     * new tier is created once the current one holds PLAYERS_PER_TIER players.
+     * Guarded by the rounds phaser.
      */
-    private static CountDownLatch playersFinishedRound;
+    private static Phaser playerTier = new Phaser(rounds);
 
     /**
-     * The CountDownLatch object used to synchronize the closing of the market at the end of each round.
+     * The number of players registered on the current tier. Guarded by the rounds phaser.
      */
-    private static CountDownLatch marketFinishedRound;
+    private static int playersInTier;
+
+    /**
+     * The barrier the market arrives at when it has finished a round. Every
+     * arrival advances its phase, so the main thread waits for the first arrival
+     * after the start of the round.
+     */
+    private static final Phaser marketRounds = new Phaser(1);
+
+    /**
+     * The phase of the market barrier when the current round was started. Only
+     * used by the main thread.
+     */
+    private static int marketPhase;
 
     /**
      * Sets the game as started.
@@ -72,6 +97,8 @@ public class Synchronizer {
      */
     public static void setGameFinished() {
         gameFinished.countDown();
+        rounds.forceTermination();
+        marketRounds.forceTermination();
     }
 
     /**
@@ -84,53 +111,32 @@ public class Synchronizer {
     }
 
     /**
-     * Sets the start of a new round and synchronizes the synchronization mechanism for this round.
+     * Starts a new round. Blocks until every player is ready for the round, then
+     * releases them all at once.
      *
-     * @param numberOfPlayers the number of players in this round.
+     * @throws InterruptedException if the thread is interrupted while waiting.
      */
-    public static void setRoundStarted(int numberOfPlayers) {
-        /** Prepare new round*/
-        /** Reset sync latches */
-        playersFinishedRound = new CountDownLatch(numberOfPlayers);
-        marketFinishedRound = new CountDownLatch(1);
-        roundFinished = new CountDownLatch(1);
-
+    public static void setRoundStarted() throws InterruptedException {
         /** Start the game in not started*/
         if (!gameStarted()) {
             setGameStarted();
         }
 
-        /** start the round*/
-        roundStarted.countDown();
-    }
+        /** Only arrivals of the market after this point finish the round*/
+        marketPhase = marketRounds.getPhase();
 
-    /**
-     * Blocks the current thread until the round is started.
-     *
-     * @throws InterruptedException if the thread is interrupted while waiting.
-     */
-    public static void waitRoundStarted() throws InterruptedException {
-        roundStarted.await();
-    }
-
-    /**
-     * Signals the end of the current round and synchronizes the synchronization mechanism for the next round.
-     *
-     * @throws InterruptedException if the thread is interrupted during execution.
-     */
-    public static void setRoundFinished() throws InterruptedException {
-        roundStarted = new CountDownLatch(1);
-        roundFinished.countDown();
-        //Thread.sleep(10);
+        /** start the round*/
+        rounds.awaitAdvanceInterruptibly(rounds.arrive());
     }
 
     /**
-     * Blocks the current thread until the current round is finished.
+     * Blocks the current player until the round is started. Returns right away once the game is finished.
      *
+     * @param tier the tier the player is registered on
      * @throws InterruptedException if the thread is interrupted while waiting.
      */
-    public static void waitRoundFinished() throws InterruptedException {
-        roundFinished.await();
+    public static void waitRoundStarted(Phaser tier) throws InterruptedException {
+        arriveAndAwaitRound(tier);
     }
 
     /**
@@ -139,7 +145,7 @@ public class Synchronizer {
      * @throws InterruptedException if the thread is interrupted while waiting.
      */
     public static void waitForPlayers() throws InterruptedException {
-        playersFinishedRound.await();
+        rounds.awaitAdvanceInterruptibly(rounds.arrive());
     }
 
     /**
@@ -148,30 +154,86 @@ public class Synchronizer {
      * @throws InterruptedException if the thread is interrupted while waiting.
      */
     public static void waitForMarket() throws InterruptedException {
-        marketFinishedRound.await();
+        marketRounds.awaitAdvanceInterruptibly(marketPhase);
     }
 
     /**
      * Signals that the market has completed the current round.
      */
     public static void setMarketFinished() {
-        marketFinishedRound.countDown();
+        marketRounds.arrive();
+    }
+
+    /**
+     * Registers the player of the current thread as a party of the rounds. A player registered while a round is in
+     * play joins with the next round. The player is registered on a tier of the rounds, which it passes to the other
+     * methods of the player.
+     *
+     * @return the tier the player is registered on
+     * @throws IllegalStateException if the player cannot be registered
+     */
+    public static Phaser registerPlayer() {
+        Phaser tier;
+        int phase;
+        synchronized (rounds) {
+            if (playersInTier == PLAYERS_PER_TIER) {
+                playerTier = new Phaser(rounds);
+                playersInTier = 0;
+            }
+            tier = playerTier;
+            phase = tier.register();
+            playersInTier++;
+        }
+        if (phase >= 0 && (phase & 1) == 1) {
+            /** A round is already in play, the player joins with the next one*/
+            tier.awaitAdvance(tier.arrive());
+        }
+        return tier;
     }
 
     /**
-     * Decrements the count of the playersFinishedRound latch, indicating that a player has finished the current round.
+     * Signals that a player has finished loading.
      */
     public static void notifyPlayerLoaded() {
         allPlayersLoaded.countDown();
     }
 
     /**
-     * Waits until all players have finished loading.
+     * Signals that a player has finished its turn and blocks until all players have finished theirs. The player is
+     * held at the start of the next round until the main thread has closed the current one.
      *
-     * @throws InterruptedException if the current thread is interrupted while waiting
+     * @param tier the tier the player is registered on
+     * @throws InterruptedException if the thread is interrupted while waiting.
      */
-    public static void notifyPlayerFinishedRound() {
-        playersFinishedRound.countDown();
+    public static void notifyPlayerFinishedRoundAndWait(Phaser tier) throws InterruptedException {
+        arriveAndAwaitRound(tier);
+    }
+
+    /**
+     * Deregisters a player that leaves the game, so the rounds no longer wait for it.
+     *
+     * @param tier the tier the player is registered on
+     */
+    public static void notifyPlayerLeft(Phaser tier) {
+        tier.arriveAndDeregister();
+    }
+
+    /**
+     * Arrives at the current phase of the rounds and blocks until it is advanced. If the player is interrupted while
+     * waiting, it still waits for the phase to advance, as its arrival was already counted. It can then leave with
+     * notifyPlayerLeft in the next phase.
+     *
+     * @param tier the tier the player is registered on
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    private static void arriveAndAwaitRound(Phaser tier) throws InterruptedException {
+        int phase = tier.arrive();
+        try {
+            tier.awaitAdvanceInterruptibly(phase);
+        } catch (InterruptedException e) {
+            tier.awaitAdvance(phase);
+            throw e;
+        }
     }
 
     /**